@@ -0,0 +1,126 @@
+package com.example.bleframework;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * This class holds the state of a bulk transfer of data to a characteristic. The data is split
+ * in chunks as large as the MTU allows. Chunks can be sent without response: in that case one
+ * chunk every "window" is sent with response, as a checkpoint. When the peripheral acknowledges
+ * a checkpoint, all the data up to it has been received. After an error or a disconnection, the
+ * transfer resumes from the last checkpoint.
+ *
+ * Every chunk starts with the offset of its data (4 bytes, little endian), so the peripheral
+ * stores it at the right position: the chunks sent again on resume overwrite the same bytes
+ * instead of being appended.
+ */
+
+class BulkTransfer
+{
+    // Size of the offset at the start of every chunk
+    static final int OFFSET_BYTES = 4;
+
+    final String deviceAddress;
+    final String uuid;
+    final byte[] data;
+    final boolean withResponse;
+    final int window;
+    final int crc;
+
+    // Bytes acknowledged at the last checkpoint
+    int ackedOffset = 0;
+    // Bytes sent, including the ones not acknowledged yet
+    int sentOffset = 0;
+    // Chunks sent since the last checkpoint
+    int chunksSinceCheckpoint = 0;
+    // True if the transfer has been interrupted and must be resumed
+    private final AtomicBoolean paused = new AtomicBoolean(false);
+
+
+    BulkTransfer(String deviceAddress, String uuid, byte[] data, boolean withResponse, int window)
+    {
+        this.deviceAddress = deviceAddress;
+        this.uuid = uuid;
+        this.data = data;
+        this.withResponse = withResponse;
+        this.window = Math.max(1, window);
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(data);
+        this.crc = (int) crc32.getValue();
+    }
+
+
+    boolean hasDataToSend() {
+        return sentOffset < data.length;
+    }
+
+
+    boolean isComplete() {
+        return ackedOffset >= data.length;
+    }
+
+
+    /**
+     * @return True if the next chunk must be acknowledged by the peripheral
+     */
+
+    boolean isNextChunkCheckpoint(int length) {
+        return withResponse || chunksSinceCheckpoint + 1 >= window || sentOffset + length >= data.length;
+    }
+
+
+    boolean isPaused() {
+        return paused.get();
+    }
+
+
+    /**
+     * @return The chunk of the data starting at offset, preceded by the offset
+     */
+
+    byte[] getChunk(int offset, int length)
+    {
+        return ByteBuffer.allocate(OFFSET_BYTES + length).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(offset).put(data, offset, length).array();
+    }
+
+
+    /**
+     * Stops the transfer at the last checkpoint, until it is resumed
+     */
+
+    void pause()
+    {
+        rewind();
+        paused.set(true);
+    }
+
+
+    /**
+     * Restarts a paused transfer from the last checkpoint. When called concurrently, only one
+     * of the callers restarts the transfer.
+     * @return True if the transfer has been restarted, False if it was not paused
+     */
+
+    boolean resume()
+    {
+        if (!paused.compareAndSet(true, false))
+            return false;
+        rewind();
+        return true;
+    }
+
+
+    /**
+     * Moves the transfer back to the last checkpoint
+     */
+
+    void rewind()
+    {
+        sentOffset = ackedOffset;
+        chunksSinceCheckpoint = 0;
+    }
+}
@@ -0,0 +1,259 @@
+package com.example.bleframework;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class schedules the GATT operations of all the connected devices. Android accepts a
+ * single pending operation per connection, so every device has its own queue and the next
+ * operation is started only when the previous one has been completed by its callback.
+ * The number of operations in progress across all the devices is limited, so the devices are
+ * served with a smooth weighted round robin: a device with a higher weight gets a proportionally
+ * larger share of the operations while the others still make progress.
+ * An operation whose callback does not arrive in time is reported by getTimedOutDevices.
+ */
+
+class GattOperationScheduler
+{
+    static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    static final long DEFAULT_TIMEOUT_MS = 10000;
+
+    // An operation on a device. execute() starts it and returns false if it could not be started,
+    // in which case the operation itself is responsible for reporting the error
+    abstract static class Operation
+    {
+        boolean failed = false;
+
+        abstract boolean execute();
+
+        // Called when the operation is discarded because its device has been disconnected
+        void onDropped() {}
+    }
+
+    private class DeviceQueue
+    {
+        LinkedList<Operation> pending = new LinkedList<Operation>();
+        Operation inFlight;
+        long startedAt;
+        int weight = 1;
+        int currentWeight = 0;
+    }
+
+    private final Map<String, DeviceQueue> devices = new HashMap<>();
+
+    // Weights of the devices. They are kept when a device is disconnected, so they hold across reconnections
+    private final Map<String, Integer> weights = new HashMap<>();
+
+    // Maximum number of operations in progress across all the devices
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int inFlightCount = 0;
+
+    // Time after which an operation in progress is considered lost
+    private long timeoutMs = DEFAULT_TIMEOUT_MS;
+
+
+    /**
+     * Sets the weight of the device. Devices with a higher weight are served more often
+     * when the number of operations in progress is limited.
+     */
+
+    synchronized void setWeight(String deviceAddress, int weight)
+    {
+        weights.put(deviceAddress, Math.max(1, weight));
+        getQueue(deviceAddress).weight = Math.max(1, weight);
+    }
+
+
+    /**
+     * Sets the maximum number of operations in progress across all the devices
+     */
+
+    synchronized void setMaxInFlight(int maxInFlight)
+    {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        schedule();
+    }
+
+
+    synchronized void setTimeout(long timeoutMs) {
+        this.timeoutMs = Math.max(1, timeoutMs);
+    }
+
+
+    /**
+     * Queues an operation for the device and starts it if possible.
+     * @return False if the operation has been started immediately and failed, True otherwise
+     */
+
+    synchronized boolean enqueue(String deviceAddress, Operation operation)
+    {
+        getQueue(deviceAddress).pending.add(operation);
+        schedule();
+        return !operation.failed;
+    }
+
+
+    /**
+     * Queues a group of operations for the device at once, so that none of them is completed
+     * before all of them have been queued.
+     */
+
+    synchronized void enqueueAll(String deviceAddress, List<? extends Operation> operations)
+    {
+        getQueue(deviceAddress).pending.addAll(operations);
+        schedule();
+    }
+
+
+    /**
+     * Removes an operation that has not been started yet
+     * @return True if the operation has been removed, False otherwise
+     */
+
+    synchronized boolean remove(String deviceAddress, Operation operation)
+    {
+        DeviceQueue queue = devices.get(deviceAddress);
+        return queue != null && queue.pending.remove(operation);
+    }
+
+
+    /**
+     * @return The operation in progress for the device, null if there is none
+     */
+
+    synchronized Operation getInFlight(String deviceAddress)
+    {
+        DeviceQueue queue = devices.get(deviceAddress);
+        return queue == null ? null : queue.inFlight;
+    }
+
+
+    /**
+     * @return The operations of the device not started yet. The list can be used only while
+     * holding the lock of the scheduler.
+     */
+
+    synchronized List<Operation> getPending(String deviceAddress) {
+        return getQueue(deviceAddress).pending;
+    }
+
+
+    /**
+     * Marks the operation in progress for the device as completed and starts the next ones
+     * @return The completed operation, null if there was none
+     */
+
+    synchronized Operation complete(String deviceAddress)
+    {
+        DeviceQueue queue = devices.get(deviceAddress);
+        if (queue == null || queue.inFlight == null)
+            return null;
+
+        Operation completed = queue.inFlight;
+        queue.inFlight = null;
+        inFlightCount--;
+        schedule();
+        return completed;
+    }
+
+
+    /**
+     * @return The devices whose operation in progress has been started more than the timeout ago
+     */
+
+    synchronized List<String> getTimedOutDevices()
+    {
+        List<String> timedOut = new ArrayList<>();
+        long now = now();
+        for (Map.Entry<String, DeviceQueue> entry : devices.entrySet())
+        {
+            DeviceQueue queue = entry.getValue();
+            if (queue.inFlight != null && now - queue.startedAt >= timeoutMs)
+                timedOut.add(entry.getKey());
+        }
+        return timedOut;
+    }
+
+
+    /**
+     * Removes all the operations of the device
+     * @return The operations removed, including the one in progress
+     */
+
+    synchronized List<Operation> removeDevice(String deviceAddress)
+    {
+        List<Operation> removed = new ArrayList<>();
+        DeviceQueue queue = devices.remove(deviceAddress);
+        if (queue == null)
+            return removed;
+
+        if (queue.inFlight != null)
+        {
+            removed.add(queue.inFlight);
+            inFlightCount--;
+        }
+        removed.addAll(queue.pending);
+        schedule();
+        return removed;
+    }
+
+
+    // Milliseconds of a monotonic clock
+    long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+
+    private DeviceQueue getQueue(String deviceAddress)
+    {
+        DeviceQueue queue = devices.get(deviceAddress);
+        if (queue == null)
+        {
+            queue = new DeviceQueue();
+            Integer weight = weights.get(deviceAddress);
+            if (weight != null)
+                queue.weight = weight;
+            devices.put(deviceAddress, queue);
+        }
+        return queue;
+    }
+
+
+    // Starts operations until the limit is reached or no device has something to do
+    private void schedule()
+    {
+        while (inFlightCount < maxInFlight)
+        {
+            DeviceQueue next = null;
+            int totalWeight = 0;
+            for (DeviceQueue queue : devices.values())
+            {
+                if (queue.inFlight != null || queue.pending.isEmpty())
+                    continue;
+
+                queue.currentWeight += queue.weight;
+                totalWeight += queue.weight;
+                if (next == null || queue.currentWeight > next.currentWeight)
+                    next = queue;
+            }
+            if (next == null)
+                return;
+
+            next.currentWeight -= totalWeight;
+            Operation operation = next.pending.poll();
+            next.inFlight = operation;
+            next.startedAt = now();
+            inFlightCount++;
+
+            if (!operation.execute())
+            {
+                operation.failed = true;
+                next.inFlight = null;
+                inFlightCount--;
+            }
+        }
+    }
+}
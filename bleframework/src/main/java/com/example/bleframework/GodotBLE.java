@@ -18,31 +18,48 @@ import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.location.LocationManager;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
 import androidx.collection.ArraySet;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.FileProvider;
 
+import org.godotengine.godot.Dictionary;
 import org.godotengine.godot.Godot;
 import org.godotengine.godot.plugin.GodotPlugin;
 import org.godotengine.godot.plugin.SignalInfo;
 import org.godotengine.godot.plugin.UsedByGodot;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class represents the Plugin that will be loaded in Godot in order to exploit
@@ -59,7 +76,7 @@ import java.util.UUID;
 public class GodotBLE extends GodotPlugin
 {
     // Used to implement a write characteristic queue
-    class WriteCharacteristicRequest
+    class WriteCharacteristicRequest extends GattOperationScheduler.Operation
     {
         public CharacteristicType type;
         public String deviceAddress;
@@ -67,16 +84,233 @@ public class GodotBLE extends GodotPlugin
         public String stringValue;
         public int intValue;
         public float floatValue;
+        public byte[] value; // encoded value, used only when the writes are coalesced
+
+        @Override
+        public boolean execute() {
+            return sendWriteRequest(this);
+        }
     }
 
     enum CharacteristicType {BYTE, INT, FLOAT, STRING};
 
+    // A signal waiting to be emitted on the render thread
+    class PendingSignal
+    {
+        public String name;
+        public Object[] args;
+        public long sequence;
+    }
+
+    // MTU exchanges are queued like the other operations, since they are refused while another one is pending
+    class MtuRequest extends GattOperationScheduler.Operation
+    {
+        public String deviceAddress;
+
+        @Override
+        public boolean execute()
+        {
+            BluetoothGatt bluetoothGatt = bluetoothGatts.get(deviceAddress);
+            return bluetoothGatt != null && bluetoothGatt.requestMtu(512);
+        }
+    }
+
+    // Read of a characteristic
+    class ReadCharacteristicRequest extends GattOperationScheduler.Operation
+    {
+        public String deviceAddress;
+        public BluetoothGattCharacteristic characteristic;
+
+        @Override
+        public boolean execute()
+        {
+            BluetoothGatt bluetoothGatt = bluetoothGatts.get(deviceAddress);
+            boolean read = bluetoothGatt != null && bluetoothGatt.readCharacteristic(characteristic);
+            trace(TraceBuffer.READ_REQUEST, deviceAddress, characteristic.getInstanceId(), read ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE);
+            return read;
+        }
+    }
+
+    // Last value known of a characteristic
+    class CachedValue
+    {
+        public byte[] value;
+        public long timestamp;
+    }
+
+    // Read of the RSSI of a connected device
+    class RssiReadRequest extends GattOperationScheduler.Operation
+    {
+        public RssiSampler sampler;
+
+        @Override
+        public boolean execute()
+        {
+            BluetoothGatt bluetoothGatt = bluetoothGatts.get(sampler.deviceAddress);
+            if (bluetoothGatt != null && bluetoothGatt.readRemoteRssi())
+                return true;
+            sampler.readQueued = false;
+            return false;
+        }
+
+        @Override
+        public void onDropped() {
+            sampler.readQueued = false;
+        }
+    }
+
+    // Target of a write group. The characteristic is resolved once for each connection
+    class WriteGroupTarget
+    {
+        public String deviceAddress;
+        public String uuid;
+        public BluetoothGatt gatt;
+        public BluetoothGattCharacteristic characteristic;
+        public int writeType;
+    }
+
+    // A value written to all the targets of a group, notified once all the writes are completed
+    class GroupWrite
+    {
+        public String groupName;
+        public int pending;
+        public int succeeded = 0;
+        public int failed = 0;
+        public long firstCompletion = 0;
+        public long lastCompletion = 0;
+    }
+
+    // The write of a group value to one of its targets
+    class GroupWriteRequest extends GattOperationScheduler.Operation
+    {
+        public WriteGroupTarget target;
+        public byte[] value;
+        public GroupWrite groupWrite;
+
+        @Override
+        public boolean execute()
+        {
+            if (sendGroupWrite(this))
+                return true;
+            completeGroupWrite(groupWrite, false);
+            return false;
+        }
+
+        @Override
+        public void onDropped() {
+            completeGroupWrite(groupWrite, false);
+        }
+    }
+
+    // A chunk of a bulk transfer
+    class TransferChunkRequest extends GattOperationScheduler.Operation
+    {
+        public BulkTransfer transfer;
+        public int offset;
+        public int length;
+        public boolean checkpoint;
+
+        @Override
+        public boolean execute() {
+            return sendTransferChunk(this);
+        }
+
+        @Override
+        public void onDropped()
+        {
+            // The device has been disconnected: the transfer resumes from the last checkpoint after reconnecting
+            transfer.pause();
+        }
+    }
+
+    // Read of the CRC computed by the peripheral at the end of a bulk transfer
+    class TransferCrcRead extends GattOperationScheduler.Operation
+    {
+        public String deviceAddress;
+        public BluetoothGattCharacteristic characteristic;
+        public int expectedCrc;
+
+        @Override
+        public boolean execute()
+        {
+            BluetoothGatt bluetoothGatt = bluetoothGatts.get(deviceAddress);
+            boolean read = bluetoothGatt != null && bluetoothGatt.readCharacteristic(characteristic);
+            trace(TraceBuffer.READ_REQUEST, deviceAddress, characteristic.getInstanceId(), read ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE);
+            return read;
+        }
+    }
+
+    // Used to implement reliable write transactions: the writes are collected by the app and then
+    // sent together between beginReliableWrite and executeReliableWrite
+    class WriteTransaction extends GattOperationScheduler.Operation
+    {
+        public String deviceAddress;
+        public LinkedList<TransactionWrite> pendingWrites = new LinkedList<TransactionWrite>();
+        public ArrayList<TransactionWrite> sentWrites = new ArrayList<TransactionWrite>();
+        public TransactionWrite currentWrite;
+        public boolean executing = false;
+        public boolean aborted = false;
+        // True while a write waits for its acknowledgement, guarded by the transaction
+        public boolean writeInFlight = false;
+        // True once the peripheral has been asked to commit: it cannot be aborted anymore
+        public boolean committing = false;
+
+        @Override
+        public boolean execute() {
+            return startWriteTransaction(this);
+        }
+
+        @Override
+        public void onDropped()
+        {
+            if (!aborted)
+                dispatchSignal("write_transaction_completed", deviceAddress, false);
+        }
+    }
+
+    class TransactionWrite
+    {
+        public BluetoothGattCharacteristic characteristic;
+        public byte[] value;
+    }
+
+    // Used to implement a write descriptor queue, since a descriptor write fails while another one is pending
+    class DescriptorWriteRequest extends GattOperationScheduler.Operation
+    {
+        public String deviceAddress;
+        public BluetoothGattDescriptor descriptor;
+        public byte[] payload;
+        public NotificationSubscription subscription;
+
+        @Override
+        public boolean execute() {
+            return sendDescriptorWrite(this);
+        }
+
+        @Override
+        public void onDropped() {
+            completeSubscriptionWrite(this, false);
+        }
+    }
+
+    // Result of a bulk notification subscription, notified once all its descriptor writes are acknowledged
+    class NotificationSubscription
+    {
+        public String deviceAddress;
+        public int requestedCount;
+        public int pendingWrites;
+        public ArrayList<String> failedUuids = new ArrayList<String>();
+    }
+
     private Activity activity;
 
     // Codes for bluetooth and location enabling requests
     private final int ENABLE_BLUETOOTH_REQUEST_CODE = 1;
     private final int ENABLE_LOCATION_REQUEST_CODE = 2;
 
+    // Code for the permissions request
+    private final int PERMISSIONS_REQUEST_CODE = 1001;
+
     // UUID of the descriptor used to subscribe to a characteristic notifications
     private final String CCC_DESCRIPTOR_UUID = "00002902-0000-1000-8000-00805F9B34FB";
     //000002902-0000-1000-8000-00805f9b34fb
@@ -93,8 +327,14 @@ public class GodotBLE extends GodotPlugin
     private Map<String, BluetoothGatt> bluetoothGatts = new HashMap<>();
 
     // Maps to convert an UUID (String) to the corresponding Characterisitc/Service object
-    private Map<String, Map<String, BluetoothGattCharacteristic>> characteristicMap = new HashMap<>();
-    private Map<String, Map<String, BluetoothGattService>> serviceMap = new HashMap<>();
+    private Map<String, ConcurrentMap<String, BluetoothGattCharacteristic>> characteristicMap = new HashMap<>();
+    private Map<String, ConcurrentMap<String, BluetoothGattService>> serviceMap = new HashMap<>();
+
+    // Services indexed as soon as they are discovered, all of them if empty
+    private List<UUID> requiredServices = new ArrayList<>();
+
+    // Mapping <device address, services already indexed> of the devices with some services not indexed yet
+    private Map<String, Set<BluetoothGattService>> partiallyIndexedDevices = new ConcurrentHashMap<>();
 
     // Objects use to set the scanning options
     private ScanFilter.Builder scanFilter = new ScanFilter.Builder();
@@ -105,8 +345,180 @@ public class GodotBLE extends GodotPlugin
     // List of devices found during the last scanning
     private List<BluetoothDevice> scanResults;
 
-    // List of write characteristics requests received from the app
-    private LinkedList<WriteCharacteristicRequest> writeCharacteristicsQueue = new LinkedList<WriteCharacteristicRequest>();
+    // Timing of the scheduled scan and of the scan starts
+    private ScanScheduler scanScheduler = new ScanScheduler();
+
+    // Starts a window of the scheduled scan, as soon as the limit of the scan starts allows it
+    private Runnable scanWindowStart = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (!scanScheduler.isActive())
+                return;
+
+            long delay = scanScheduler.getStartDelay(SystemClock.elapsedRealtime());
+            if (delay > 0)
+            {
+                handler.postDelayed(this, delay);
+                return;
+            }
+            startLeScan();
+            handler.postDelayed(scanWindowEnd, scanScheduler.windowMs);
+        }
+    };
+
+    // Ends a window of the scheduled scan and plans the next one
+    private Runnable scanWindowEnd = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (!scanScheduler.isActive())
+                return;
+
+            stopLeScan();
+            handler.postDelayed(scanWindowStart, scanScheduler.endWindow());
+        }
+    };
+
+    private Runnable scanTimeout = new Runnable()
+    {
+        @Override
+        public void run() {
+            finishScheduledScan("timeout");
+        }
+    };
+
+    // Starts the scan requested with startScan when it was over the limit of the scan starts
+    private Runnable delayedScanStart = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (!isScanning || scanScheduler.isActive())
+                return;
+
+            long delay = scanScheduler.getStartDelay(SystemClock.elapsedRealtime());
+            if (delay > 0)
+                handler.postDelayed(this, delay);
+            else
+                startLeScan();
+        }
+    };
+
+    // Maximum number of devices connected (or being connected) at the same time
+    private int maxConnections = 7;
+
+    // Addresses of the devices connected or being connected
+    private Set<String> activeConnections = new HashSet<>();
+
+    // Devices waiting for a free connection slot
+    private LinkedList<BluetoothDevice> pendingConnections = new LinkedList<BluetoothDevice>();
+
+    // Mapping <device address, GATT client> of the devices being connected
+    private Map<String, BluetoothGatt> connectingGatts = new ConcurrentHashMap<>();
+
+    // Queues of the GATT operations (writes, reads, descriptor writes...) of all the devices
+    private GattOperationScheduler operationScheduler = new GattOperationScheduler();
+
+    // Period of the check of the GATT operations timed out
+    private final long OPERATION_WATCHDOG_MS = 1000;
+
+    // Disconnects the devices whose GATT operation has not been answered in time. Android does
+    // not accept another operation until the callback of the pending one arrives, so the
+    // connection cannot be used anymore
+    private Runnable operationWatchdog = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            for (String deviceAddress : operationScheduler.getTimedOutDevices())
+            {
+                if (PluginLog.isLoggable(Log.ERROR))
+                    Log.e("ConnectionManager", "GATT operation timed out for ".concat(deviceAddress));
+                dispatchSignal("connection_error", "Connection Error: GATT operation timed out for ".concat(deviceAddress), deviceAddress);
+                disconnect(deviceAddress);
+            }
+            handler.postDelayed(this, OPERATION_WATCHDOG_MS);
+        }
+    };
+
+    // If true, a write replaces the pending write of the same characteristic and writes of the
+    // value already acknowledged are skipped
+    private boolean writeCoalescing = false;
+
+    // Mapping <device address, <characteristic UUID, last value acknowledged>>, used to coalesce the writes
+    private Map<String, Map<String, byte[]>> lastWrittenValues = new ConcurrentHashMap<>();
+
+    // Ring of the traced events, null if the trace is disabled
+    private volatile TraceBuffer traceBuffer = null;
+
+    // Mapping <device address, <characteristic UUID, last value known>>
+    private Map<String, Map<String, CachedValue>> valueCache = new ConcurrentHashMap<>();
+
+    // Mapping <device address, bulk transfer in progress or interrupted>
+    private Map<String, BulkTransfer> transfers = new ConcurrentHashMap<>();
+
+    // Mapping <device address, CRC of the last bulk transfer completed>
+    private Map<String, Integer> completedTransferCrcs = new ConcurrentHashMap<>();
+
+    // Mapping <device address, MTU negotiated>. The default ATT MTU is 23 bytes
+    private Map<String, Integer> deviceMtus = new ConcurrentHashMap<>();
+    private final int DEFAULT_MTU = 23;
+
+    // Mapping <group name, targets of the group>
+    private Map<String, List<WriteGroupTarget>> writeGroups = new HashMap<>();
+
+    // Devices the app has connected to, saved across the restarts of the app
+    private KnownDeviceRegistry knownDevices;
+
+    // Mapping <device address, RSSI sampler>
+    private Map<String, RssiSampler> rssiSamplers = new ConcurrentHashMap<>();
+
+    // Smoothing of the RSSI samplers started from now on
+    private int rssiSmoothingMode = RssiSampler.KALMAN;
+    private float rssiSmoothingParameter = 4f;
+
+    // Used to run the periodic tasks on the main thread
+    private Handler handler = new Handler(Looper.getMainLooper());
+
+    // Notifications received from the devices and not yet delivered to Godot
+    private NotificationBuffer notificationBuffer = new NotificationBuffer(256, NotificationBuffer.DROP_OLDEST);
+
+    // If not null, the notifications are written here and Godot reads them with pollNotificationRing
+    private volatile NotificationRing notificationRing = null;
+
+    // Signals waiting to be emitted on the render thread, in order of arrival
+    private final List<PendingSignal> pendingSignals = new ArrayList<>();
+
+    // Order of arrival of the signals and of the buffered notifications. Guarded by pendingSignals
+    private long signalSequence = 0;
+
+    // True if the dispatch of the pending signals has already been requested to the render thread
+    private AtomicBoolean signalDispatchScheduled = new AtomicBoolean(false);
+
+    private Runnable signalDispatch = new Runnable()
+    {
+        @Override
+        public void run() {
+            dispatchPendingSignals();
+        }
+    };
+
+    // Mapping <device address, write transaction> of the reliable write transactions opened by the app
+    private Map<String, WriteTransaction> writeTransactions = new HashMap<>();
+
+    // Mapping <device address, L2CAP channel>. Channels are opened and closed from their own threads
+    private ConcurrentMap<String, L2capChannel> l2capChannels = new ConcurrentHashMap<>();
+
+    // Maximum size of a batch of L2CAP data delivered to Godot and of the L2CAP data waiting to be sent
+    private int l2capBatchBytes = 16384;
+    private int l2capMaxQueuedBytes = 65536;
+
+    // Events of the L2CAP channels, forwarded to Godot as signals. It is created with the first
+    // channel, since the channels are available only from Android 10
+    private L2capChannel.Listener l2capListener = null;
 
     // Device scan callback. This object contains all the callbacks necessary to manage the scan process
     private ScanCallback leScanCallback =
@@ -116,18 +528,30 @@ public class GodotBLE extends GodotPlugin
                 @Override
                 public void onScanResult(int callbackType, ScanResult result)
                 {
-                    Log.i("SCANNING", "found device " + result.getDevice().getName() + "with address " + result.getDevice().getAddress());
+                    trace(TraceBuffer.SCAN_RESULT, result.getDevice().getAddress(), result.getRssi(), BluetoothGatt.GATT_SUCCESS);
+                    if (PluginLog.isLoggable(Log.INFO))
+                        Log.i("SCANNING", "found device " + result.getDevice().getName() + "with address " + result.getDevice().getAddress());
 
                     BluetoothDevice device = result.getDevice();
+
+                    // Devices not connected are sampled through the scan results
+                    RssiSampler sampler = rssiSamplers.get(device.getAddress());
+                    long now = SystemClock.elapsedRealtime();
+                    if (sampler != null && !bluetoothGatts.containsKey(device.getAddress()) && sampler.isSampleDue(now) && sampler.add(result.getRssi(), now))
+                        dispatchSignal("rssi_changed", device.getAddress(), sampler.getSmoothedRssi());
+
                     if (scanResults.indexOf(device) == -1)
                     {
                         // Send a signal to Godot with name and address of the device found
                         if (result.getDevice().getName() != null)
-                            emitSignal("device_found", device.getName(), device.getAddress());
+                            dispatchSignal("device_found", device.getName(), device.getAddress());
                         else
-                            emitSignal("device_found", "", device.getAddress());
+                            dispatchSignal("device_found", "", device.getAddress());
 
                         scanResults.add(result.getDevice()); //add the result to the list
+
+                        if (scanScheduler.isActive() && scanScheduler.addMatch())
+                            finishScheduledScan("matches");
                     }
                 }
 
@@ -135,8 +559,9 @@ public class GodotBLE extends GodotPlugin
                 public void onScanFailed(int errorCode)
                 {
                     String scanFailedMessage = "Scan Failed: code ".concat(String.valueOf(errorCode));
-                    Log.e("ScanCallback", "onScanFailed: code ".concat(String.valueOf(errorCode)));
-                    emitSignal("scan_failed", scanFailedMessage);
+                    if (PluginLog.isLoggable(Log.ERROR))
+                        Log.e("ScanCallback", "onScanFailed: code ".concat(String.valueOf(errorCode)));
+                    dispatchSignal("scan_failed", scanFailedMessage);
                 }
             };
 
@@ -148,140 +573,299 @@ public class GodotBLE extends GodotPlugin
                 public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
                     String deviceAddress = gatt.getDevice().getAddress();
                     String deviceName = gatt.getDevice().getName();
+                    trace(TraceBuffer.CONNECTION_STATE, deviceAddress, newState, status);
 
-                    Log.i("BluetoothGattCallback", "---bleplugin:ConnectionStateChanged status=".concat(String.valueOf(status)).concat(" newStatus=").concat(String.valueOf(newState)));
+                    if (PluginLog.isLoggable(Log.INFO))
+                        Log.i("BluetoothGattCallback", "---bleplugin:ConnectionStateChanged status=".concat(String.valueOf(status)).concat(" newStatus=").concat(String.valueOf(newState)));
 
                     //if there was not an error, check if it was a connection or disconnection
                     if (status == BluetoothGatt.GATT_SUCCESS) {
                         if (newState == BluetoothProfile.STATE_CONNECTED) {
-                            Log.w("BluetoothGattCallback", "Successfully connected to ".concat(deviceAddress));
+                            if (PluginLog.isLoggable(Log.WARN))
+                                Log.w("BluetoothGattCallback", "Successfully connected to ".concat(deviceAddress));
                             bluetoothGatts.put(deviceAddress, gatt); //save the instance of the BluetoothGatt for this connection
+                            connectingGatts.remove(deviceAddress);
+                            if (knownDevices != null)
+                                knownDevices.remember(gatt.getDevice()); //save the device to connect it without scanning next time
                             gatt.discoverServices(); //discover services of the device we are connected to
                             //gatt.requestMtu(512);
                             //Log.i("BluetootGattCallback","---bleplugin:mtu_request_512");
-                            emitSignal("device_connected", deviceAddress, deviceName); //send a signal to Godot to say that the connection was successfull
+                            dispatchSignal("device_connected", deviceAddress, deviceName); //send a signal to Godot to say that the connection was successfull
                         } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                            Log.w("BluetoothGattCallback", "Successfully disconnected from ".concat(deviceAddress));
+                            if (PluginLog.isLoggable(Log.WARN))
+                                Log.w("BluetoothGattCallback", "Successfully disconnected from ".concat(deviceAddress));
                             gatt.close();
                             bluetoothGatts.remove(deviceAddress);
-                            emitSignal("device_disconnected", deviceAddress, deviceName);//send a signal to Godot to say that the device has been disconnected
+                            dropOperations(deviceAddress);
+                            releaseConnection(deviceAddress);
+                            clearDeviceState(deviceAddress);
+                            dispatchSignal("device_disconnected", deviceAddress, deviceName);//send a signal to Godot to say that the device has been disconnected
                         }
                     } else {
-                        Log.w("BluetoothGattCallback", "Error ".concat(String.valueOf(status)).concat(" encountered for ").concat(deviceAddress).concat("! Disconnecting..."));
+                        if (PluginLog.isLoggable(Log.WARN))
+                            Log.w("BluetoothGattCallback", "Error ".concat(String.valueOf(status)).concat(" encountered for ").concat(deviceAddress).concat("! Disconnecting..."));
                         String connectionErrorMessage = "Connection Error ".concat(String.valueOf(status)).concat(" encountered for ").concat(deviceAddress).concat("! Disconnecting...");
-                        emitSignal("connection_error", connectionErrorMessage, deviceAddress);
+                        dispatchSignal("connection_error", connectionErrorMessage, deviceAddress);
                         gatt.close();
+                        bluetoothGatts.remove(deviceAddress);
+                        dropOperations(deviceAddress);
+                        releaseConnection(deviceAddress);
+                        clearDeviceState(deviceAddress);
                     }
                 }
 
                 @Override
                 public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-                    Log.i("BluetoothGattCallback", "---bleplugin:mut_request, mtu set to:".concat(String.valueOf(mtu)));
-                    emitSignal("mtu_changed", mtu);
+                    trace(TraceBuffer.MTU_CHANGED, gatt.getDevice().getAddress(), mtu, status);
+                    if (PluginLog.isLoggable(Log.INFO))
+                        Log.i("BluetoothGattCallback", "---bleplugin:mut_request, mtu set to:".concat(String.valueOf(mtu)));
+                    if (status == BluetoothGatt.GATT_SUCCESS)
+                        deviceMtus.put(gatt.getDevice().getAddress(), mtu);
+
+                    // The exchange can also be started by the peripheral
+                    if (operationScheduler.getInFlight(gatt.getDevice().getAddress()) instanceof MtuRequest)
+                        operationScheduler.complete(gatt.getDevice().getAddress());
+                    dispatchSignal("mtu_changed", mtu);
                 }
 
                 @Override
                 public void onServicesDiscovered(BluetoothGatt gatt, int status)
                 {
                     String deviceAddress = gatt.getDevice().getAddress();
+                    trace(TraceBuffer.SERVICES_DISCOVERED, deviceAddress, 0, status);
                     List<BluetoothGattService> services = gatt.getServices();
                     if (services.isEmpty()) //if no services found, close the connection
                     {
-                        Log.i("Service discovery", "Services not found");
-                        bluetoothGatts.remove(deviceAddress);
+                        if (PluginLog.isLoggable(Log.INFO))
+                            Log.i("Service discovery", "Services not found");
                         gatt.close();
+                        bluetoothGatts.remove(deviceAddress);
+                        dropOperations(deviceAddress);
+                        releaseConnection(deviceAddress);
+                        clearDeviceState(deviceAddress);
                         return;
                     }
 
-                    //save all the services and characteristics in the correspondent maps
-                    Map<String, BluetoothGattService> deviceServices = new HashMap<>();
-                    Map<String, BluetoothGattCharacteristic> deviceCharacteristics = new HashMap<>();
-                    for (BluetoothGattService s : services) {
-                        deviceServices.put(s.getUuid().toString().toLowerCase(), s);
-
-                        List<BluetoothGattCharacteristic> serviceCharacteristics = s.getCharacteristics();
-                        for (BluetoothGattCharacteristic c : serviceCharacteristics)
-                            deviceCharacteristics.put(c.getUuid().toString().toLowerCase(), c);
+                    // The maps can be filled later by any thread, see findCharacteristic
+                    ConcurrentMap<String, BluetoothGattService> deviceServices = new ConcurrentHashMap<>();
+                    ConcurrentMap<String, BluetoothGattCharacteristic> deviceCharacteristics = new ConcurrentHashMap<>();
+                    List<UUID> required = requiredServices;
+                    if (required.isEmpty())
+                    {
+                        //save all the services and characteristics in the correspondent maps
+                        for (BluetoothGattService s : services)
+                            indexService(s, deviceServices, deviceCharacteristics);
+                        partiallyIndexedDevices.remove(deviceAddress);
+                    }
+                    else
+                    {
+                        // Only the services declared by the app, the others are indexed when they are used
+                        Set<BluetoothGattService> indexed = Collections.newSetFromMap(new ConcurrentHashMap<BluetoothGattService, Boolean>());
+                        for (UUID uuid : required)
+                        {
+                            BluetoothGattService s = gatt.getService(uuid);
+                            if (s != null)
+                            {
+                                indexService(s, deviceServices, deviceCharacteristics);
+                                indexed.add(s);
+                            }
+                            else if (PluginLog.isLoggable(Log.WARN))
+                                Log.w("Service discovery", "Service ".concat(uuid.toString()).concat(" not found on ").concat(deviceAddress));
+                        }
+                        partiallyIndexedDevices.put(deviceAddress, indexed);
                     }
                     serviceMap.put(deviceAddress, deviceServices);
                     characteristicMap.put(deviceAddress, deviceCharacteristics);
 
-                    emitSignal("service_discovery_success", deviceAddress);
+                    // A transfer interrupted by a disconnection restarts from its last checkpoint,
+                    // before the app is notified and can resume it on its own
+                    resumeTransfer(deviceAddress);
+
+                    dispatchSignal("service_discovery_success", deviceAddress);
                 }
 
-                @Override //Called every time a write with response is performed
+                @Override //Called every time a write is performed
                 public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status)
                 {
-                    if (status == BluetoothGatt.GATT_SUCCESS)
+                    String deviceAddress = gatt.getDevice().getAddress();
+                    trace(TraceBuffer.WRITE, deviceAddress, characteristic.getInstanceId(), status);
+
+                    // Writes belonging to a reliable write transaction are handled separately
+                    GattOperationScheduler.Operation operation = operationScheduler.getInFlight(deviceAddress);
+                    if (operation instanceof WriteTransaction)
+                    {
+                        continueWriteTransaction(gatt, (WriteTransaction) operation, characteristic, status);
+                        return;
+                    }
+
+                    // The write is over, so the next operation in the queue can be sent
+                    operation = operationScheduler.complete(deviceAddress);
+
+                    // Writes of the groups are notified all together
+                    if (operation instanceof GroupWriteRequest)
+                    {
+                        GroupWriteRequest request = (GroupWriteRequest) operation;
+                        if (status == BluetoothGatt.GATT_SUCCESS)
+                            cacheValue(deviceAddress, characteristic, request.value);
+                        rememberWrittenValue(deviceAddress, request.target.uuid, status == BluetoothGatt.GATT_SUCCESS ? request.value : null);
+                        completeGroupWrite(request.groupWrite, status == BluetoothGatt.GATT_SUCCESS);
+                        return;
+                    }
+
+                    // Chunks of the bulk transfers are not notified one by one
+                    if (operation instanceof TransferChunkRequest)
                     {
-                        Log.i("BluetoothGattCallback", "Wrote to characteristic ".concat(characteristic.getUuid().toString()));
-                        emitSignal("characteristic_written", gatt.getDevice().getAddress(), characteristic.getUuid().toString());
+                        rememberWrittenValue(deviceAddress, ((TransferChunkRequest) operation).transfer.uuid, null);
+                        onTransferChunkWritten((TransferChunkRequest) operation, status);
+                        return;
+                    }
 
-                        // If characteristic queue is not empty let's write the next characteristic in the queue
-                        if (!writeCharacteristicsQueue.isEmpty())
+                    if (status == BluetoothGatt.GATT_SUCCESS)
+                    {
+                        if (operation instanceof WriteCharacteristicRequest)
                         {
-                            boolean set;
-                            WriteCharacteristicRequest nextRequest = writeCharacteristicsQueue.poll();
-                            Map<String, BluetoothGattCharacteristic> deviceCharacteristics = characteristicMap.get(nextRequest.deviceAddress);
-                            BluetoothGattCharacteristic nextCharacteristic = deviceCharacteristics.get(nextRequest.uuid.toLowerCase());
-                            switch (nextRequest.type) {
-                                case INT:
-                                    set = characteristic.setValue(nextRequest.intValue, BluetoothGattCharacteristic.FORMAT_UINT32, 0);
-                                    break;
-                                case FLOAT:
-                                    // The float cannot be directly sent, so it is converted to a UINT32 (without truncating it)
-                                    //and the conversion will be done by the receiver
-                                    Integer intBits = Float.floatToIntBits(nextRequest.floatValue);
-                                    set = characteristic.setValue(intBits, BluetoothGattCharacteristic.FORMAT_UINT32, 0);
-                                    break;
-                                case BYTE:
-                                    set = characteristic.setValue(nextRequest.intValue, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-                                    break;
-                                case STRING:
-                                    set = characteristic.setValue(nextRequest.stringValue);
-                                    break;
-                            }
-                            // write the characterisitc
-                            boolean written = bluetoothGatts.get(nextRequest.deviceAddress).writeCharacteristic(characteristic);
-                            // TODO: implement a Godot boolean signal to notify set&written
+                            WriteCharacteristicRequest request = (WriteCharacteristicRequest) operation;
+                            if (request.value != null)
+                                rememberWrittenValue(deviceAddress, request.uuid, request.value);
+
+                            // The value is taken from the request: complete() may already have set
+                            // the value of the next write in the characteristic
+                            cacheValue(deviceAddress, characteristic, request.value != null ? request.value : encodeWriteRequest(request));
                         }
+
+                        if (PluginLog.isLoggable(Log.INFO))
+                            Log.i("BluetoothGattCallback", "Wrote to characteristic ".concat(characteristic.getUuid().toString()));
+                        dispatchSignal("characteristic_written", deviceAddress, characteristic.getUuid().toString());
                     } else if (status == BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH)
                     {
-                        Log.e("BluetoothGattCallback", "Write exceeded connection ATT MTU!");
-                        emitSignal("characteristic_write_error", "Write exceeded connection ATT MTU!");
+                        if (PluginLog.isLoggable(Log.ERROR))
+                            Log.e("BluetoothGattCallback", "Write exceeded connection ATT MTU!");
+                        dispatchSignal("characteristic_write_error", "Write exceeded connection ATT MTU!");
                     } else if (status == BluetoothGatt.GATT_WRITE_NOT_PERMITTED)
                     {
-                        Log.e("BluetoothGattCallback", "Write not permitted for ".concat(characteristic.getUuid().toString()));
-                        emitSignal("characteristic_write_error", "Write not permitted for ".concat(characteristic.getUuid().toString()));
+                        if (PluginLog.isLoggable(Log.ERROR))
+                            Log.e("BluetoothGattCallback", "Write not permitted for ".concat(characteristic.getUuid().toString()));
+                        dispatchSignal("characteristic_write_error", "Write not permitted for ".concat(characteristic.getUuid().toString()));
                     } else {
-                        Log.e("BluetoothGattCallback", "Characteristic write failed for ".concat(characteristic.getUuid().toString()).concat(", error: ").concat(String.valueOf(status)));
-                        emitSignal("characteristic_write_error", "Characteristic write failed for ".concat(characteristic.getUuid().toString()).concat(", error: ").concat(String.valueOf(status)));
+                        if (PluginLog.isLoggable(Log.ERROR))
+                            Log.e("BluetoothGattCallback", "Characteristic write failed for ".concat(characteristic.getUuid().toString()).concat(", error: ").concat(String.valueOf(status)));
+                        dispatchSignal("characteristic_write_error", "Characteristic write failed for ".concat(characteristic.getUuid().toString()).concat(", error: ").concat(String.valueOf(status)));
                     }
                 }
 
+                @Override //Called every time a descriptor write is acknowledged
+                public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status)
+                {
+                    trace(TraceBuffer.DESCRIPTOR_WRITE, gatt.getDevice().getAddress(), descriptor.getCharacteristic().getInstanceId(), status);
+                    if (status != BluetoothGatt.GATT_SUCCESS && PluginLog.isLoggable(Log.ERROR))
+                        Log.e("BluetoothGattCallback", "Descriptor write failed for ".concat(descriptor.getCharacteristic().getUuid().toString()).concat(", error: ").concat(String.valueOf(status)));
+
+                    GattOperationScheduler.Operation operation = operationScheduler.complete(gatt.getDevice().getAddress());
+                    if (operation instanceof DescriptorWriteRequest)
+                        completeSubscriptionWrite((DescriptorWriteRequest) operation, status == BluetoothGatt.GATT_SUCCESS);
+                }
+
+                @Override //Called when a reliable write transaction has been executed (or aborted) by the peripheral
+                public void onReliableWriteCompleted(BluetoothGatt gatt, int status)
+                {
+                    String deviceAddress = gatt.getDevice().getAddress();
+                    trace(TraceBuffer.RELIABLE_WRITE, deviceAddress, 0, status);
+                    GattOperationScheduler.Operation operation = operationScheduler.getInFlight(deviceAddress);
+                    if (!(operation instanceof WriteTransaction))
+                        return;
+                    operationScheduler.complete(deviceAddress);
+
+                    // The values prepared are known only if the peripheral has committed them
+                    WriteTransaction transaction = (WriteTransaction) operation;
+                    boolean committed = !transaction.aborted && status == BluetoothGatt.GATT_SUCCESS;
+                    for (TransactionWrite write : transaction.sentWrites)
+                        rememberWrittenValue(deviceAddress, write.characteristic.getUuid().toString(), committed ? write.value : null);
+
+                    // An aborted transaction has already been notified
+                    if (transaction.aborted)
+                        return;
+                    writeTransactions.remove(deviceAddress);
+
+                    if (PluginLog.isLoggable(Log.INFO))
+                        Log.i("BluetoothGattCallback", "Reliable write completed for ".concat(deviceAddress).concat(", status: ").concat(String.valueOf(status)));
+                    dispatchSignal("write_transaction_completed", deviceAddress, status == BluetoothGatt.GATT_SUCCESS);
+                }
+
+                @Override //Called every time the RSSI of a connected device is read
+                public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status)
+                {
+                    String deviceAddress = gatt.getDevice().getAddress();
+                    trace(TraceBuffer.RSSI, deviceAddress, rssi, status);
+                    if (operationScheduler.getInFlight(deviceAddress) instanceof RssiReadRequest)
+                        operationScheduler.complete(deviceAddress);
+
+                    RssiSampler sampler = rssiSamplers.get(deviceAddress);
+                    if (sampler == null)
+                        return;
+                    sampler.readQueued = false;
+
+                    if (status == BluetoothGatt.GATT_SUCCESS && sampler.add(rssi, SystemClock.elapsedRealtime()))
+                        dispatchSignal("rssi_changed", deviceAddress, sampler.getSmoothedRssi());
+                }
+
                 @Override //Called every time a read is performed
                 public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+                    trace(TraceBuffer.READ, gatt.getDevice().getAddress(), characteristic.getInstanceId(), status);
+
+                    // complete() can start the next operation, that may set a new value to the same
+                    // characteristic: the value read is copied first
+                    byte[] value = characteristic.getValue() != null ? characteristic.getValue().clone() : null;
+                    String uuid = characteristic.getUuid().toString();
+
+                    GattOperationScheduler.Operation operation = operationScheduler.complete(gatt.getDevice().getAddress());
+                    if (operation instanceof TransferCrcRead)
+                    {
+                        onTransferCrcRead((TransferCrcRead) operation, value, status);
+                        return;
+                    }
+
                     if (status == BluetoothGatt.GATT_SUCCESS) {
-                        Log.i("BluetoothGattCallback", "Read characteristic ".concat(characteristic.getUuid().toString()));
+                        if (PluginLog.isLoggable(Log.INFO))
+                            Log.i("BluetoothGattCallback", "Read characteristic ".concat(characteristic.getUuid().toString()));
+                        cacheValue(gatt.getDevice().getAddress(), characteristic, value);
 
                         //send the UUID and the new value to godot
-                        emitSignal("characteristic_read", gatt.getDevice().getAddress(), characteristic.getUuid().toString(), characteristic.getValue());
+                        dispatchSignal("characteristic_read", gatt.getDevice().getAddress(), uuid, value);
                     } else if (status == BluetoothGatt.GATT_READ_NOT_PERMITTED) {
-                        Log.e("BluetoothGattCallback", "Read not permitted for ".concat(characteristic.getUuid().toString()));
-                        emitSignal("characteristic_read_error", "Read not permitted for ".concat(characteristic.getUuid().toString()));
+                        if (PluginLog.isLoggable(Log.ERROR))
+                            Log.e("BluetoothGattCallback", "Read not permitted for ".concat(characteristic.getUuid().toString()));
+                        dispatchSignal("characteristic_read_error", "Read not permitted for ".concat(characteristic.getUuid().toString()));
                     } else {
-                        Log.e("BluetoothGattCallback", "Characteristic read failed for ".concat(characteristic.getUuid().toString()).concat(", error: ").concat(String.valueOf(status)));
-                        emitSignal("characteristic_read_error", "Characteristic read failed for ".concat(characteristic.getUuid().toString()).concat(", error: ").concat(String.valueOf(status)));
+                        if (PluginLog.isLoggable(Log.ERROR))
+                            Log.e("BluetoothGattCallback", "Characteristic read failed for ".concat(characteristic.getUuid().toString()).concat(", error: ").concat(String.valueOf(status)));
+                        dispatchSignal("characteristic_read_error", "Characteristic read failed for ".concat(characteristic.getUuid().toString()).concat(", error: ").concat(String.valueOf(status)));
                     }
                 }
 
                 @Override
                 //Called every time a characteristic we are subscribed to changed its value
                 public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-                    Log.i("Character changed", "the characteristic: ".concat(characteristic.getUuid().toString()).concat("changed"));
+                    trace(TraceBuffer.NOTIFICATION, gatt.getDevice().getAddress(), characteristic.getInstanceId(), BluetoothGatt.GATT_SUCCESS);
+                    if (PluginLog.isLoggable(Log.INFO))
+                        Log.i("Character changed", "the characteristic: ".concat(characteristic.getUuid().toString()).concat("changed"));
+
+                    // Copied, since the writes with a format change the value of the characteristic in
+                    // place while the notification waits to be delivered
+                    byte[] value = characteristic.getValue() != null ? characteristic.getValue().clone() : new byte[0];
+                    cacheValue(gatt.getDevice().getAddress(), characteristic, value);
+
+                    NotificationRing ring = notificationRing;
+                    if (ring != null)
+                    {
+                        ring.write(gatt.getDevice().getAddress(), characteristic.getUuid().toString(), value);
+                        return;
+                    }
 
-                    //send the UUID and the new value to godot
-                    emitSignal("characteristic_changed", gatt.getDevice().getAddress(), characteristic.getUuid().toString(), characteristic.getValue());
+                    //buffer the UUID and the new value, they are sent to godot by the render thread
+                    synchronized (pendingSignals) {
+                        notificationBuffer.offer(gatt.getDevice().getAddress(), characteristic.getUuid().toString(), value, ++signalSequence);
+                    }
+                    scheduleSignalDispatch();
                 }
             };
 
@@ -310,19 +894,65 @@ public class GodotBLE extends GodotPlugin
                 "resetScanFilters",
                 "startScan",
                 "stopScan",
+                "startScheduledScan",
+                "stopScheduledScan",
                 "connectToDeviceByAddress",
                 "connectToDeviceByName",
+                "connectToKnownDevices",
+                "getKnownDevices",
+                "forgetKnownDevice",
+                "clearKnownDevices",
+                "setAutoConnectKnownDevices",
                 "disconnect",
                 "requestMtu",
+                "setMaxConnections",
+                "setDevicePriority",
+                "setMaxConcurrentOperations",
+                "setOperationTimeout",
+                "setWriteCoalescing",
+                "createWriteGroup",
+                "addWriteGroupTarget",
+                "removeWriteGroup",
+                "writeGroupInt",
+                "writeGroupByte",
+                "writeGroupFloat",
+                "writeGroupString",
+                "startTransfer",
+                "startFileTransfer",
+                "resumeTransfer",
+                "cancelTransfer",
+                "verifyTransfer",
+                "startRssiSampling",
+                "stopRssiSampling",
+                "setRssiSmoothing",
+                "setNotificationBuffer",
+                "enableNotificationRing",
+                "pollNotificationRing",
+                "getNotificationRingChannels",
                 "isConnected",
                 "hasService",
                 "hasCharacteristic",
+                "setRequiredServices",
                 "setCharacteristicNotifications",
+                "setCharacteristicsNotifications",
                 "writeIntCharacteristic",
                 "writeByteCharacteristic",
                 "writeStringCharacteristic",
                 "writeFloatCharacteristic",
                 "readCharacteristic",
+                "setLogLevel",
+                "enableTrace",
+                "dumpTrace",
+                "getCachedValue",
+                "getCachedValueAge",
+                "beginWriteTransaction",
+                "addTransactionWrite",
+                "executeWriteTransaction",
+                "abortWriteTransaction",
+                "openL2capChannel",
+                "writeL2capChannel",
+                "closeL2capChannel",
+                "setL2capBuffering",
                 "isWritable",
                 "isWritableNoResponse",
                 "isReadable",
@@ -338,16 +968,31 @@ public class GodotBLE extends GodotPlugin
         Set<SignalInfo> signals = new ArraySet<>();
 
         signals.add(new SignalInfo("scan_failed", String.class));
+        signals.add(new SignalInfo("scan_completed", String.class, Integer.class));
         signals.add(new SignalInfo("device_found", String.class, String.class));
         signals.add(new SignalInfo("device_connected", String.class, String.class));
         signals.add(new SignalInfo("device_disconnected", String.class, String.class));
         signals.add(new SignalInfo("mtu_changed", Integer.class));
         signals.add(new SignalInfo("connection_error", String.class, String.class));
+        signals.add(new SignalInfo("connection_queued", String.class));
+        signals.add(new SignalInfo("group_write_completed", String.class, Integer.class, Integer.class, Float.class));
+        signals.add(new SignalInfo("transfer_progress", String.class, Integer.class, Integer.class));
+        signals.add(new SignalInfo("transfer_completed", String.class, String.class, Integer.class));
+        signals.add(new SignalInfo("transfer_failed", String.class, String.class));
+        signals.add(new SignalInfo("transfer_verified", String.class, Boolean.class));
+        signals.add(new SignalInfo("rssi_changed", String.class, Integer.class));
         signals.add(new SignalInfo("characteristic_read", String.class, String.class, byte[].class));
         signals.add(new SignalInfo("characteristic_read_error", String.class));
         signals.add(new SignalInfo("characteristic_written", String.class, String.class));
         signals.add(new SignalInfo("characteristic_written_error", String.class));
         signals.add(new SignalInfo("characteristic_changed", String.class, String.class, byte[].class));
+        signals.add(new SignalInfo("notifications_dropped", String.class, Integer.class));
+        signals.add(new SignalInfo("write_transaction_completed", String.class, Boolean.class));
+        signals.add(new SignalInfo("notifications_subscription_completed", String.class, Integer.class, String[].class));
+        signals.add(new SignalInfo("l2cap_channel_opened", String.class, Integer.class));
+        signals.add(new SignalInfo("l2cap_data_received", String.class, byte[].class));
+        signals.add(new SignalInfo("l2cap_write_ready", String.class));
+        signals.add(new SignalInfo("l2cap_channel_closed", String.class, String.class));
         signals.add(new SignalInfo("service_discovery_success", String.class));
         signals.add(new SignalInfo("ble_initialized"));
         signals.add(new SignalInfo("ble_initialization_error", String.class));
@@ -371,6 +1016,24 @@ public class GodotBLE extends GodotPlugin
     public void onMainRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults)
     {
         super.onMainRequestPermissionsResult(requestCode, permissions, grantResults);
+
+        // The known devices are connected without scanning, so they are ready as soon as possible.
+        // It is done here since connectGatt needs the permission to connect
+        if (requestCode == PERMISSIONS_REQUEST_CODE && hasConnectPermission() && bluetoothAdapter != null
+                && bluetoothAdapter.isEnabled() && knownDevices != null && knownDevices.isAutoConnect())
+            connectToKnownDevices();
+    }
+
+
+    /**
+     * @return True if the app can connect to the devices and read their bond state. The runtime
+     * permission is required from Android 12
+     */
+
+    private boolean hasConnectPermission()
+    {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.S
+                || ActivityCompat.checkSelfPermission(activity, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED;
     }
 
     /*
@@ -379,6 +1042,7 @@ public class GodotBLE extends GodotPlugin
     public void initialize()
     {
         activity = getActivity();
+        knownDevices = new KnownDeviceRegistry(activity);
 
         // Initializes Bluetooth adapter.
         bluetoothManager = (BluetoothManager) activity.getSystemService(Context.BLUETOOTH_SERVICE);
@@ -388,10 +1052,11 @@ public class GodotBLE extends GodotPlugin
             ActivityCompat.requestPermissions(activity, new String[]{   Manifest.permission.ACCESS_FINE_LOCATION ,
                                                                         Manifest.permission.BLUETOOTH_SCAN,
                                                                         Manifest.permission.BLUETOOTH_CONNECT},
-                                                                        1001);
+                                                                        PERMISSIONS_REQUEST_CODE);
         } else {
-            Log.e("Bluetooth Manager", "Bluetooth Manager impossible to retrieve");
-            emitSignal("ble_initialization_error", "Bluetooth Manager impossible to retrieve");
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("Bluetooth Manager", "Bluetooth Manager impossible to retrieve");
+            dispatchSignal("ble_initialization_error", "Bluetooth Manager impossible to retrieve");
             return;
         }
 
@@ -409,7 +1074,10 @@ public class GodotBLE extends GodotPlugin
             activity.startActivityForResult(enableLocation, ENABLE_LOCATION_REQUEST_CODE);
         }
 
-        emitSignal("ble_initialized");
+        handler.removeCallbacks(operationWatchdog);
+        handler.postDelayed(operationWatchdog, OPERATION_WATCHDOG_MS);
+
+        dispatchSignal("ble_initialized");
     }
 
 
@@ -455,16 +1123,28 @@ public class GodotBLE extends GodotPlugin
     public void startScan()
     {
         if (bluetoothAdapter == null) {
-            Log.e("ERROR", "BluetoothAdapter not initialized");
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("ERROR", "BluetoothAdapter not initialized");
             return;
         }
-        bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
+        cancelScheduledScan();
+        handler.removeCallbacks(delayedScanStart);
         scanResults = new ArrayList<>();
-        Log.i("SCANNING","Start Scanning");
-
-        bluetoothLeScanner.startScan(Collections.singletonList(scanFilter.build()), scanSettings, leScanCallback);
+        if (PluginLog.isLoggable(Log.INFO))
+            Log.i("SCANNING","Start Scanning");
 
         isScanning = true;
+
+        // Too many starts in the last 30 seconds: the platform would ignore this one
+        long delay = scanScheduler.getStartDelay(SystemClock.elapsedRealtime());
+        if (delay > 0)
+        {
+            if (PluginLog.isLoggable(Log.WARN))
+                Log.w("SCANNING", "Too many scans started, scanning delayed by ".concat(String.valueOf(delay)).concat(" ms"));
+            handler.postDelayed(delayedScanStart, delay);
+        }
+        else
+            startLeScan();
     }
 
 
@@ -472,401 +1152,2118 @@ public class GodotBLE extends GodotPlugin
 
     public void stopScan()
     {
-        if (bluetoothLeScanner != null)
-            bluetoothLeScanner.stopScan(leScanCallback);
+        handler.removeCallbacks(delayedScanStart);
+        finishScheduledScan("stopped");
+        stopLeScan();
 
         isScanning = false;
     }
 
 
     /**
-     * Connect to a device previously found giving its address
-     * @param deviceAddress
+     * Starts a scan in windows: the scan runs for windowMs every intervalMs. When a window finds no
+     * new device the interval is doubled, up to maxIntervalMs. The scan ends after maxMatches
+     * devices have been found or after timeoutMs, with the signal scan_completed. The windows are
+     * delayed if needed so that the scan is not started more than 5 times in 30 seconds.
+     * @param maxMatches number of devices to find, 0 for no limit
+     * @param timeoutMs duration of the scan, 0 for no limit
+     * @return True on success, False otherwise
      */
 
-    public void connectToDeviceByAddress(String deviceAddress)
+    public boolean startScheduledScan(int windowMs, int intervalMs, int maxIntervalMs, int maxMatches, int timeoutMs)
     {
-        //Search for the device with that address
-        for (BluetoothDevice r : scanResults)
-            if (r.getAddress().equals(deviceAddress)) {   // connect
-                r.connectGatt(activity, false, gattCallback, 2);
-                return;
-            }
+        if (bluetoothAdapter == null) {
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("ERROR", "BluetoothAdapter not initialized");
+            return false;
+        }
+
+        handler.removeCallbacks(delayedScanStart);
+        cancelScheduledScan();
+        stopLeScan();
+        scanResults = new ArrayList<>();
+
+        scanScheduler.start(windowMs, intervalMs, maxIntervalMs, maxMatches, timeoutMs);
+        isScanning = true;
+        handler.post(scanWindowStart);
+        if (scanScheduler.timeoutMs > 0)
+            handler.postDelayed(scanTimeout, scanScheduler.timeoutMs);
+        return true;
     }
 
 
     /**
-     * Connect to a device previously found giving its name
-     * @param deviceName
+     * Stops the scheduled scan, emitting scan_completed
      */
 
-    public void connectToDeviceByName(String deviceName)
-    {
-        for (BluetoothDevice r : scanResults)
-        {   //look for the desired device
-            String name = r.getName();
-            if (name == null) continue;
-            else if (name.equals(deviceName)) {   //connect
-                r.connectGatt(activity, false, gattCallback, 2);
-                return;
-            }
-        }
+    public void stopScheduledScan() {
+        finishScheduledScan("stopped");
     }
 
-    /**
-     * Request a specific mtu passed as parameter
+
+    // Stops the scheduled scan in progress, if any, and notifies Godot
+    private void finishScheduledScan(String reason)
+    {
+        if (!scanScheduler.isActive())
+            return;
+
+        int matches = scanScheduler.getMatches();
+        cancelScheduledScan();
+        stopLeScan();
+        isScanning = false;
+        dispatchSignal("scan_completed", reason, matches);
+    }
+
+
+    private void cancelScheduledScan()
+    {
+        scanScheduler.stop();
+        handler.removeCallbacks(scanWindowStart);
+        handler.removeCallbacks(scanWindowEnd);
+        handler.removeCallbacks(scanTimeout);
+    }
+
+
+    // Starts the radio, recording the start for the limit of the platform
+    private void startLeScan()
+    {
+        bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
+        if (bluetoothLeScanner == null)
+            return;
+
+        bluetoothLeScanner.startScan(Collections.singletonList(scanFilter.build()), scanSettings, leScanCallback);
+        scanScheduler.recordStart(SystemClock.elapsedRealtime());
+    }
+
+
+    private void stopLeScan()
+    {
+        if (bluetoothLeScanner != null)
+            bluetoothLeScanner.stopScan(leScanCallback);
+    }
+
+
+    /**
+     * Connect to a device previously found giving its address
+     * @param deviceAddress
+     */
+
+    public void connectToDeviceByAddress(String deviceAddress)
+    {
+        //Search for the device with that address
+        if (scanResults != null)
+            for (BluetoothDevice r : scanResults)
+                if (r.getAddress().equals(deviceAddress)) {   // connect
+                    requestConnection(r);
+                    return;
+                }
+
+        //Not found during the last scanning: connect directly through the address
+        connectToRemoteDevice(deviceAddress);
+    }
+
+
+    /**
+     * Connect to a device previously found giving its name
+     * @param deviceName
+     */
+
+    public void connectToDeviceByName(String deviceName)
+    {
+        if (scanResults != null)
+            for (BluetoothDevice r : scanResults)
+            {   //look for the desired device
+                String name = r.getName();
+                if (name == null) continue;
+                else if (name.equals(deviceName)) {   //connect
+                    requestConnection(r);
+                    return;
+                }
+            }
+
+        //Not found during the last scanning: look for it among the known devices
+        if (knownDevices != null)
+        {
+            String deviceAddress = knownDevices.findAddressByName(deviceName);
+            if (deviceAddress != null)
+                connectToRemoteDevice(deviceAddress);
+        }
+    }
+
+
+    /**
+     * Connects to all the known devices, without scanning. The connections exceeding the
+     * maximum number of connections are queued.
+     */
+
+    public void connectToKnownDevices()
+    {
+        if (knownDevices == null)
+            return;
+
+        for (String deviceAddress : knownDevices.getAddresses())
+            connectToRemoteDevice(deviceAddress);
+    }
+
+
+    /**
+     * @return A dictionary <device address, {"name": device name, "bonded": current bond state}>
+     * with the devices the app has connected to
+     */
+
+    public Dictionary getKnownDevices()
+    {
+        Dictionary devices = new Dictionary();
+        if (knownDevices == null)
+            return devices;
+
+        boolean canReadBondState = bluetoothAdapter != null && hasConnectPermission();
+        for (String deviceAddress : knownDevices.getAddresses())
+        {
+            Dictionary device = new Dictionary();
+            device.put("name", knownDevices.getName(deviceAddress));
+            device.put("bonded", canReadBondState && bluetoothAdapter.getRemoteDevice(deviceAddress).getBondState() == BluetoothDevice.BOND_BONDED);
+            devices.put(deviceAddress, device);
+        }
+        return devices;
+    }
+
+
+    /**
+     * Removes the device from the known devices
+     */
+
+    public void forgetKnownDevice(String deviceAddress)
+    {
+        if (knownDevices != null)
+            knownDevices.forget(deviceAddress);
+    }
+
+
+    /**
+     * Removes all the known devices
+     */
+
+    public void clearKnownDevices()
+    {
+        if (knownDevices != null)
+            knownDevices.clear();
+    }
+
+
+    /**
+     * If enabled, initialize connects to all the known devices. The option is saved.
+     */
+
+    public void setAutoConnectKnownDevices(boolean enable)
+    {
+        if (knownDevices != null)
+            knownDevices.setAutoConnect(enable);
+    }
+
+
+    /**
+     * Connects to the device with the given address through BluetoothAdapter.getRemoteDevice,
+     * without the need to find it with a scanning
+     */
+
+    private void connectToRemoteDevice(String deviceAddress)
+    {
+        if (bluetoothAdapter == null)
+        {
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("ERROR", "BluetoothAdapter not initialized");
+            return;
+        }
+
+        if (!BluetoothAdapter.checkBluetoothAddress(deviceAddress))
+        {
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("ConnectionManager", "Invalid address ".concat(deviceAddress));
+            return;
+        }
+
+        requestConnection(bluetoothAdapter.getRemoteDevice(deviceAddress));
+    }
+
+    /**
+     * Starts sampling the RSSI of the device: it is read periodically if the device is connected,
+     * otherwise it is taken from the scan results. The samples are smoothed and the signal
+     * rssi_changed is emitted only when the smoothed value changes by at least thresholdDb.
+     * @param intervalMs time between two samples
+     * @param thresholdDb minimum change of the smoothed RSSI to be notified
+     */
+
+    public void startRssiSampling(String deviceAddress, int intervalMs, float thresholdDb)
+    {
+        stopRssiSampling(deviceAddress);
+
+        final RssiSampler sampler = new RssiSampler(deviceAddress, intervalMs, thresholdDb, rssiSmoothingMode, rssiSmoothingParameter);
+        sampler.readTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (rssiSamplers.get(sampler.deviceAddress) != sampler)
+                    return;
+
+                if (bluetoothGatts.containsKey(sampler.deviceAddress) && !sampler.readQueued)
+                {
+                    RssiReadRequest request = new RssiReadRequest();
+                    request.sampler = sampler;
+                    sampler.readQueued = true;
+                    operationScheduler.enqueue(sampler.deviceAddress, request);
+                }
+                handler.postDelayed(this, sampler.intervalMs);
+            }
+        };
+        rssiSamplers.put(deviceAddress, sampler);
+        handler.post(sampler.readTask);
+    }
+
+
+    /**
+     * Stops sampling the RSSI of the device
+     */
+
+    public void stopRssiSampling(String deviceAddress)
+    {
+        RssiSampler sampler = rssiSamplers.remove(deviceAddress);
+        if (sampler != null)
+            handler.removeCallbacks(sampler.readTask);
+    }
+
+
+    /**
+     * Sets the smoothing of the RSSI samplers started from now on
+     * @param mode 0: exponential moving average, 1: Kalman filter
+     * @param parameter for the moving average, the weight of a new sample (between 0 and 1).
+     *                  For the Kalman filter, the variance of the measurements: the higher, the smoother
+     */
+
+    public void setRssiSmoothing(int mode, float parameter)
+    {
+        if (mode == RssiSampler.EMA && (parameter <= 0 || parameter > 1))
+            return;
+        if (mode == RssiSampler.KALMAN && parameter <= 0)
+            return;
+
+        rssiSmoothingMode = mode == RssiSampler.EMA ? RssiSampler.EMA : RssiSampler.KALMAN;
+        rssiSmoothingParameter = parameter;
+    }
+
+
+    /**
+     * Connects to the device if a connection slot is free, otherwise the device waits in the
+     * queue until one of the connected devices is disconnected.
+     */
+
+    private void requestConnection(BluetoothDevice device)
+    {
+        String deviceAddress = device.getAddress();
+        synchronized (activeConnections)
+        {
+            if (activeConnections.contains(deviceAddress))
+                return;
+
+            if (activeConnections.size() < maxConnections)
+            {
+                startConnection(device);
+                return;
+            }
+
+            for (BluetoothDevice d : pendingConnections)
+                if (d.getAddress().equals(deviceAddress))
+                    return;
+            pendingConnections.add(device);
+        }
+
+        if (PluginLog.isLoggable(Log.INFO))
+            Log.i("ConnectionManager", "Connection queued for ".concat(deviceAddress));
+        dispatchSignal("connection_queued", deviceAddress);
+    }
+
+
+    /**
+     * Frees the connection slot of the device and connects the devices waiting for it
+     */
+
+    private void releaseConnection(String deviceAddress)
+    {
+        synchronized (activeConnections)
+        {
+            activeConnections.remove(deviceAddress);
+            connectingGatts.remove(deviceAddress);
+            while (activeConnections.size() < maxConnections && !pendingConnections.isEmpty())
+                startConnection(pendingConnections.poll());
+        }
+    }
+
+
+    /**
+     * Takes a connection slot and starts the connection. The slot is given back if the GATT
+     * client cannot be created. To be called holding the lock of activeConnections.
+     */
+
+    private void startConnection(BluetoothDevice device)
+    {
+        String deviceAddress = device.getAddress();
+        BluetoothGatt bluetoothGatt = device.connectGatt(activity, false, gattCallback, 2);
+        if (bluetoothGatt == null)
+        {
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("ConnectionManager", "connectGatt failed for ".concat(deviceAddress));
+            dispatchSignal("connection_error", "Connection Error: impossible to connect to ".concat(deviceAddress), deviceAddress);
+            return;
+        }
+
+        activeConnections.add(deviceAddress);
+        connectingGatts.put(deviceAddress, bluetoothGatt);
+    }
+
+
+    /**
+     * Removes the device from the queue of the connections
+     * @return True if the device was waiting in the queue, False otherwise
+     */
+
+    private boolean cancelPendingConnection(String deviceAddress)
+    {
+        synchronized (activeConnections)
+        {
+            for (BluetoothDevice d : pendingConnections)
+                if (d.getAddress().equals(deviceAddress))
+                    return pendingConnections.remove(d);
+        }
+        return false;
+    }
+
+
+    /**
+     * Discards the GATT operations of a device that has been disconnected
+     */
+
+    private void dropOperations(String deviceAddress)
+    {
+        writeTransactions.remove(deviceAddress);
+        for (GattOperationScheduler.Operation operation : operationScheduler.removeDevice(deviceAddress))
+            operation.onDropped();
+    }
+
+
+    /**
+     * Sets the maximum number of devices connected at the same time. Further connection requests
+     * are queued and the signal connection_queued is emitted.
+     * @param max maximum number of connections. The controller limit is usually around 7
+     */
+
+    public void setMaxConnections(int max)
+    {
+        maxConnections = Math.max(1, max);
+        releaseConnection("");
+    }
+
+
+    /**
+     * Sets the priority of the device. When the number of concurrent GATT operations is limited,
+     * a device with priority 4 gets four operations for each one of a device with priority 1.
+     * @param priority weight of the device, at least 1
+     */
+
+    public void setDevicePriority(String deviceAddress, int priority) {
+        operationScheduler.setWeight(deviceAddress, priority);
+    }
+
+
+    /**
+     * Sets the maximum number of GATT operations in progress at the same time across all the
+     * devices. Each device never has more than one operation in progress.
+     * @param max maximum number of operations in progress, 4 by default
+     */
+
+    public void setMaxConcurrentOperations(int max) {
+        operationScheduler.setMaxInFlight(max);
+    }
+
+
+    /**
+     * Sets the time after which a GATT operation without answer is considered lost. The device
+     * is then disconnected and the signal connection_error is emitted.
+     * @param timeoutMs timeout in milliseconds, 10000 by default
+     */
+
+    public void setOperationTimeout(int timeoutMs) {
+        operationScheduler.setTimeout(timeoutMs);
+    }
+
+
+    /**
+     * Request a specific mtu passed as parameter
      * @param deviceAddress
      */
 
-    public void requestMtu(String deviceAddress) {
-        bluetoothGatts.get(deviceAddress).requestMtu(512);
+    public void requestMtu(String deviceAddress)
+    {
+        MtuRequest request = new MtuRequest();
+        request.deviceAddress = deviceAddress;
+        operationScheduler.enqueue(deviceAddress, request);
+    }
+
+    /**
+     * Disconnect from the device
+     */
+
+    public void disconnect(String deviceAddress)
+    {
+        characteristicMap.remove(deviceAddress);
+        serviceMap.remove(deviceAddress);
+        partiallyIndexedDevices.remove(deviceAddress);
+        if (cancelPendingConnection(deviceAddress))
+            return;
+
+        // After close() no callback is received, so the device is removed here. A device still
+        // being connected is stopped too, otherwise it would connect without a slot
+        BluetoothGatt bluetoothGatt = bluetoothGatts.remove(deviceAddress);
+        if (bluetoothGatt == null)
+            bluetoothGatt = connectingGatts.remove(deviceAddress);
+        if (bluetoothGatt != null)
+        {
+            bluetoothGatt.disconnect();
+            bluetoothGatt.close();
+        }
+        dropOperations(deviceAddress);
+        releaseConnection(deviceAddress);
+        clearDeviceState(deviceAddress);
+    }
+
+
+    /**
+     * Forgets what is known about the state of a device that has been disconnected
+     */
+
+    private void clearDeviceState(String deviceAddress)
+    {
+        lastWrittenValues.remove(deviceAddress);
+        deviceMtus.remove(deviceAddress);
+        valueCache.remove(deviceAddress);
+    }
+
+
+    /**
+     * @return True if we are currecntly connected to a device, false otherwise
+     */
+
+    public boolean isConnected(String deviceAddress)
+    {
+        return bluetoothGatts.containsKey(deviceAddress);
+    }
+
+
+    /**
+     * @param uuid Service to be search in the device we are connected to
+     * @return True if the device provides the service with this uuid, False otherwise
+     */
+
+    public boolean hasService(String deviceAddress, String uuid)
+    {
+        return findService(deviceAddress, uuid) != null;
+    }
+
+
+    /**
+     * @param uuid Characteristic to be search in the device we are connected to
+     * @return True if the device provides the characteristic with this uuid, False otherwise
+     */
+
+    public boolean hasCharacteristic(String deviceAddress, String uuid)
+    {
+        return findCharacteristic(deviceAddress, uuid) != null;
+    }
+
+
+    /**
+     * Declares the services used by the app. When the services of a device are discovered, only
+     * these ones are indexed and service_discovery_success is emitted as soon as they are ready.
+     * The other services are indexed the first time one of their characteristics is used.
+     * Applies to the devices discovered from now on.
+     * @param uuids UUIDs of the services, empty to index all the services at once (default)
+     * @return True on success, False if a UUID is not valid
+     */
+
+    public boolean setRequiredServices(String[] uuids)
+    {
+        List<UUID> required = new ArrayList<>();
+        for (String uuid : uuids)
+        {
+            try {
+                required.add(UUID.fromString(uuid));
+            } catch (IllegalArgumentException e) {
+                if (PluginLog.isLoggable(Log.ERROR))
+                    Log.e("ERROR", "Invalid service UUID ".concat(uuid));
+                return false;
+            }
+        }
+
+        requiredServices = required;
+        return true;
+    }
+
+
+    // A UUID found in more than one service is bound to the first one indexed, which does not
+    // change once the UUID has been used. The services are indexed in the order of discovery,
+    // except the required ones that are indexed first
+    private void indexService(BluetoothGattService service, ConcurrentMap<String, BluetoothGattService> deviceServices, ConcurrentMap<String, BluetoothGattCharacteristic> deviceCharacteristics)
+    {
+        deviceServices.putIfAbsent(service.getUuid().toString().toLowerCase(), service);
+        for (BluetoothGattCharacteristic c : service.getCharacteristics())
+            deviceCharacteristics.putIfAbsent(c.getUuid().toString().toLowerCase(), c);
+    }
+
+
+    /**
+     * @return The service of the device with the given UUID, null if there is none or the services
+     * have not been discovered yet
+     */
+
+    private BluetoothGattService findService(String deviceAddress, String uuid)
+    {
+        ConcurrentMap<String, BluetoothGattService> deviceServices = serviceMap.get(deviceAddress);
+        ConcurrentMap<String, BluetoothGattCharacteristic> deviceCharacteristics = characteristicMap.get(deviceAddress);
+        if (deviceServices == null || deviceCharacteristics == null)
+            return null;
+
+        BluetoothGattService service = deviceServices.get(uuid.toLowerCase());
+        Set<BluetoothGattService> indexed = partiallyIndexedDevices.get(deviceAddress);
+        if (service != null || indexed == null)
+            return service;
+
+        // Not indexed yet
+        BluetoothGatt bluetoothGatt = bluetoothGatts.get(deviceAddress);
+        if (bluetoothGatt == null)
+            return null;
+        try {
+            service = bluetoothGatt.getService(UUID.fromString(uuid));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (service != null)
+        {
+            indexService(service, deviceServices, deviceCharacteristics);
+            indexed.add(service);
+        }
+        return service;
+    }
+
+
+    /**
+     * @return The characteristic of the device with the given UUID, null if there is none or the
+     * services have not been discovered yet
+     */
+
+    private BluetoothGattCharacteristic findCharacteristic(String deviceAddress, String uuid)
+    {
+        ConcurrentMap<String, BluetoothGattCharacteristic> deviceCharacteristics = characteristicMap.get(deviceAddress);
+        if (deviceCharacteristics == null)
+            return null;
+
+        String key = uuid.toLowerCase();
+        BluetoothGattCharacteristic characteristic = deviceCharacteristics.get(key);
+        Set<BluetoothGattService> indexed = partiallyIndexedDevices.get(deviceAddress);
+        if (characteristic != null || indexed == null)
+            return characteristic;
+
+        // Not indexed yet: the services are indexed one at a time, in the order of discovery,
+        // until the characteristic is found
+        ConcurrentMap<String, BluetoothGattService> deviceServices = serviceMap.get(deviceAddress);
+        BluetoothGatt bluetoothGatt = bluetoothGatts.get(deviceAddress);
+        if (deviceServices == null || bluetoothGatt == null)
+            return null;
+
+        for (BluetoothGattService s : bluetoothGatt.getServices())
+        {
+            if (indexed.contains(s))
+                continue;
+
+            indexService(s, deviceServices, deviceCharacteristics);
+            indexed.add(s);
+            characteristic = deviceCharacteristics.get(key);
+            if (characteristic != null)
+                return characteristic;
+        }
+
+        // All the services are indexed now
+        partiallyIndexedDevices.remove(deviceAddress);
+        return null;
+    }
+
+
+    /**
+     * Sets the buffer of the notifications waiting to be delivered to Godot. When the buffer of a
+     * device is full a notification is dropped, and the signal notifications_dropped reports how
+     * many of them have been lost before the next ones are delivered.
+     * @param capacity maximum number of notifications buffered for each device
+     * @param policy 0: drop the oldest notification, 1: drop the newest notification,
+     *               2: drop the oldest notification of the same characteristic (keep the latest values)
+     */
+
+    public void setNotificationBuffer(int capacity, int policy) {
+        notificationBuffer.configure(capacity, policy);
+    }
+
+
+    /**
+     * Enables the delivery of the notifications through a ring buffer read by Godot with
+     * pollNotificationRing, usually once per frame. While it is enabled the signal
+     * characteristic_changed is not emitted.
+     * @param capacityBytes size of the ring in bytes. If 0, the ring is disabled and the
+     *                      notifications are sent as signals again
+     */
+
+    public void enableNotificationRing(int capacityBytes)
+    {
+        if (capacityBytes <= 0)
+            notificationRing = null;
+        else
+            notificationRing = new NotificationRing(capacityBytes);
+    }
+
+
+    /**
+     * Reads all the notifications written in the ring since the last call.
+     * @return A dictionary with "data": the records, "offsets": the offset of each record in data,
+     * "dropped": the records lost because the ring was full. Each record is made of the channel id
+     * (2 bytes), the length of the value (2 bytes, little endian) and the value. The channel ids
+     * are the indexes of the array returned by getNotificationRingChannels.
+     */
+
+    public Dictionary pollNotificationRing()
+    {
+        Dictionary result = new Dictionary();
+        NotificationRing ring = notificationRing;
+        if (ring == null)
+            return result;
+
+        byte[][] data = new byte[1][];
+        int[] offsets = ring.read(data);
+        result.put("data", data[0]);
+        result.put("offsets", offsets);
+        result.put("dropped", ring.takeDropped());
+        return result;
+    }
+
+
+    /**
+     * @return The channels of the notification ring as "device address/characteristic UUID",
+     * the index of each element is the channel id used in the records
+     */
+
+    public String[] getNotificationRingChannels()
+    {
+        NotificationRing ring = notificationRing;
+        if (ring == null)
+            return new String[0];
+        return ring.getChannels();
+    }
+
+
+    /**
+     * Queues a signal to be emitted on the render thread. The GATT and scan callbacks run on
+     * binder threads, so all the signals are emitted by the same thread, in order of arrival.
+     * The buffered notifications share the same ordering, see dispatchPendingSignals.
+     * The arrays passed must not be changed afterwards: the values of the characteristics, which
+     * are changed in place by the next operations, are copied by the callers.
+     */
+
+    private void dispatchSignal(String name, Object... args)
+    {
+        PendingSignal signal = new PendingSignal();
+        signal.name = name;
+        signal.args = args;
+        synchronized (pendingSignals)
+        {
+            signal.sequence = ++signalSequence;
+            pendingSignals.add(signal);
+        }
+        scheduleSignalDispatch();
+    }
+
+
+    private void scheduleSignalDispatch()
+    {
+        if (signalDispatchScheduled.compareAndSet(false, true))
+            runOnRenderThread(signalDispatch);
+    }
+
+
+    /**
+     * Emits the pending signals and the buffered notifications, all in order of arrival. It runs
+     * on the render thread. The signals queued by the handlers of these signals are emitted with
+     * the next dispatch.
+     */
+
+    private void dispatchPendingSignals()
+    {
+        // Reset first, so that the signals arriving from now on request a new dispatch
+        signalDispatchScheduled.set(false);
+
+        // Both are taken under the same lock, so no event older than the ones taken is left behind
+        List<PendingSignal> signals;
+        List<NotificationBuffer.Notification> notifications = new ArrayList<>();
+        Map<String, Integer> dropped = new HashMap<>();
+        synchronized (pendingSignals)
+        {
+            signals = new ArrayList<>(pendingSignals);
+            pendingSignals.clear();
+            notificationBuffer.drainTo(notifications, dropped);
+        }
+
+        Collections.sort(notifications, new Comparator<NotificationBuffer.Notification>()
+        {
+            @Override
+            public int compare(NotificationBuffer.Notification a, NotificationBuffer.Notification b) {
+                return Long.compare(a.sequence, b.sequence);
+            }
+        });
+
+        int next = 0;
+        for (PendingSignal signal : signals)
+        {
+            while (next < notifications.size() && notifications.get(next).sequence < signal.sequence)
+                deliverNotification(notifications.get(next++), dropped);
+            emitSignal(signal.name, signal.args);
+        }
+        while (next < notifications.size())
+            deliverNotification(notifications.get(next++), dropped);
+
+        // Devices whose notifications have all been dropped
+        for (Map.Entry<String, Integer> entry : dropped.entrySet())
+            emitNotificationsDropped(entry.getKey(), entry.getValue());
+    }
+
+
+    /**
+     * Delivers a buffered notification to Godot, preceded by the number of notifications of the
+     * same device dropped since the last dispatch. It runs on the render thread.
+     */
+
+    private void deliverNotification(NotificationBuffer.Notification notification, Map<String, Integer> dropped)
+    {
+        Integer count = dropped.remove(notification.deviceAddress);
+        if (count != null)
+            emitNotificationsDropped(notification.deviceAddress, count);
+
+        emitSignal("characteristic_changed", notification.deviceAddress, notification.uuid, notification.value);
+    }
+
+
+    private void emitNotificationsDropped(String deviceAddress, int count)
+    {
+        if (PluginLog.isLoggable(Log.WARN))
+            Log.w("NotificationBuffer", String.valueOf(count).concat(" notifications dropped for ").concat(deviceAddress));
+        emitSignal("notifications_dropped", deviceAddress, count);
+    }
+
+
+    /**
+     * Enables/Disables the notifications for the given UUID characteristic. If another descriptor
+     * write is pending, the new one is queued and sent as soon as the previous one is acknowledged.
+     * @param uuid UUID of the characteristic of which enable/disable notifications
+     * @param enable if true, notifications are enabled. if false, they are disabled
+     * @return True if the operation succeeds or has been queued, False otherwise
+     */
+
+    public boolean setCharacteristicNotifications(String deviceAddress, String uuid, boolean enable)
+    {
+        DescriptorWriteRequest request = enableNotifications(deviceAddress, findCharacteristic(deviceAddress, uuid), enable);
+        if(request == null)
+            return false;
+        return operationScheduler.enqueue(deviceAddress, request);
+    }
+
+
+    /**
+     * Enables/Disables the notifications for all the given characteristics. The CCC descriptor
+     * writes are sent back to back and the signal notifications_subscription_completed is emitted
+     * once all of them have been acknowledged.
+     * @param uuids UUIDs of the characteristics of which enable/disable notifications
+     * @param enable if true, notifications are enabled. if false, they are disabled
+     * @return True if the writes have been started, False otherwise
+     */
+
+    public boolean setCharacteristicsNotifications(String deviceAddress, String[] uuids, boolean enable)
+    {
+        if(!characteristicMap.containsKey(deviceAddress))
+            return false;
+
+        NotificationSubscription subscription = new NotificationSubscription();
+        subscription.deviceAddress = deviceAddress;
+        subscription.requestedCount = uuids.length;
+
+        List<DescriptorWriteRequest> requests = new ArrayList<>();
+        for (String uuid : uuids)
+        {
+            DescriptorWriteRequest request = enableNotifications(deviceAddress, findCharacteristic(deviceAddress, uuid), enable);
+            if (request == null)
+                subscription.failedUuids.add(uuid);
+            else
+            {
+                request.subscription = subscription;
+                requests.add(request);
+            }
+        }
+
+        subscription.pendingWrites = requests.size();
+        if (requests.isEmpty())
+        {
+            emitSubscriptionCompleted(subscription);
+            return false;
+        }
+
+        operationScheduler.enqueueAll(deviceAddress, requests);
+        return true;
+    }
+
+
+    /**
+     * Enables/Disables notifications for the given characteristic and prepares the value of the
+     * CCC descriptor. Notifications are used when supported, indications otherwise.
+     * @param characteristic Characteristic of which we want to enable/disable notifications
+     * @param enable if true, notifications are enabled. if false, they are disabled
+     * @return The descriptor write to be queued, null if the operation failed
+     */
+
+    private DescriptorWriteRequest enableNotifications(String deviceAddress, BluetoothGattCharacteristic characteristic, boolean enable)
+    {
+        if(characteristic ==  null)
+            return null;
+
+        BluetoothGatt bluetoothGatt = bluetoothGatts.get(deviceAddress);
+        if(bluetoothGatt == null)
+            return null;
+
+        UUID cccdUuid = UUID.fromString(CCC_DESCRIPTOR_UUID);
+        String uuid = characteristic.getUuid().toString();
+
+        byte[] payload;
+        if (!enable)
+            payload = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        else if (isNotifiable(deviceAddress, uuid))
+            payload = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        else if (isIndicatable(deviceAddress, uuid))
+            payload = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        else {
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("ConnectionManager", uuid.concat(" doesn't support notifications/indications"));
+            return null;
+        }
+
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(cccdUuid);
+
+        if (bluetoothGatt.setCharacteristicNotification(characteristic, enable) == false)
+        {
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("ConnectionManager", "setCharacteristicNotification failed for ".concat(uuid));
+            return null;
+        }
+
+        if (descriptor == null)
+        {
+            if (PluginLog.isLoggable(Log.WARN))
+                Log.w("ConnectionManager", " Descriptor is null for "+characteristic.toString());
+            return null;
+        }
+
+        DescriptorWriteRequest request = new DescriptorWriteRequest();
+        request.deviceAddress = deviceAddress;
+        request.descriptor = descriptor;
+        request.payload = payload;
+        return request;
+    }
+
+
+    /**
+     * Sends the given descriptor write
+     * @return True if the write has been sent, False otherwise
+     */
+
+    private boolean sendDescriptorWrite(DescriptorWriteRequest request)
+    {
+        BluetoothGatt bluetoothGatt = bluetoothGatts.get(request.deviceAddress);
+        boolean written = bluetoothGatt != null && request.descriptor.setValue(request.payload) && bluetoothGatt.writeDescriptor(request.descriptor);
+        trace(TraceBuffer.DESCRIPTOR_WRITE_REQUEST, request.deviceAddress, request.descriptor.getCharacteristic().getInstanceId(), written ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE);
+        if (written)
+            return true;
+
+        if (PluginLog.isLoggable(Log.ERROR))
+            Log.e("ConnectionManager", "writeDescriptor failed for ".concat(request.descriptor.getCharacteristic().getUuid().toString()));
+        completeSubscriptionWrite(request, false);
+        return false;
+    }
+
+
+    /**
+     * Updates the bulk subscription the given write belongs to, if any
+     */
+
+    private void completeSubscriptionWrite(DescriptorWriteRequest request, boolean success)
+    {
+        NotificationSubscription subscription = request.subscription;
+        if (subscription == null)
+            return;
+
+        synchronized (subscription)
+        {
+            if (!success)
+                subscription.failedUuids.add(request.descriptor.getCharacteristic().getUuid().toString());
+
+            subscription.pendingWrites--;
+            if (subscription.pendingWrites == 0)
+                emitSubscriptionCompleted(subscription);
+        }
+    }
+
+
+    private void emitSubscriptionCompleted(NotificationSubscription subscription)
+    {
+        int succeeded = subscription.requestedCount - subscription.failedUuids.size();
+        String[] failed = subscription.failedUuids.toArray(new String[0]);
+        dispatchSignal("notifications_subscription_completed", subscription.deviceAddress, succeeded, failed);
+    }
+
+
+    /**
+     * Change the value of characteristic with the given UUID to "value"
+     * @param uuid UUID of the characterisitc we want to change the value of
+     * @param value new value
+     * @return True on success, false otherwise
+     */
+
+    public boolean writeIntCharacteristic(String deviceAddress, String uuid, int value)
+    {
+        WriteCharacteristicRequest request = new WriteCharacteristicRequest();
+        request.type = CharacteristicType.INT;
+        request.intValue = value;
+        return queueWriteRequest(deviceAddress, uuid, request);
+    }
+
+
+    /**
+     * Change the value of characteristic with the given UUID to "value"
+     * @param uuid UUID of the characterisitc we want to change the value of
+     * @param value new value. It is an int because Godot does not support bytes. It is treated as an 8 bit int.
+     * @return True on success, false otherwise
+     */
+
+    public boolean writeByteCharacteristic(String deviceAddress, String uuid, int value)
+    {
+        WriteCharacteristicRequest request = new WriteCharacteristicRequest();
+        request.type = CharacteristicType.BYTE;
+        request.intValue = value;
+        return queueWriteRequest(deviceAddress, uuid, request);
+    }
+
+
+    /**
+     * Change the value of characteristic with the given UUID to "value"
+     * @param uuid UUID of the characterisitc we want to change the value of
+     * @param value new value.
+     * @return True on success, false otherwise
+     */
+
+    public boolean writeStringCharacteristic(String deviceAddress, String uuid, String value)
+    {
+        WriteCharacteristicRequest request = new WriteCharacteristicRequest();
+        request.type = CharacteristicType.STRING;
+        request.stringValue = value;
+        return queueWriteRequest(deviceAddress, uuid, request);
+    }
+
+
+    /**
+     * Change the value of characteristic with the given UUID to "value"
+     * @param uuid UUID of the characterisitc we want to change the value of
+     * @param value new value.
+     * @return True on success, false otherwise
+     */
+
+    public boolean writeFloatCharacteristic(String deviceAddress, String uuid, float value)
+    {
+        WriteCharacteristicRequest request = new WriteCharacteristicRequest();
+        request.type = CharacteristicType.FLOAT;
+        request.floatValue = value;
+        return queueWriteRequest(deviceAddress, uuid, request);
+    }
+
+
+    /**
+     * Checks that the characteristic of the request can be written and queues the write. It is
+     * sent immediately if no other operation is in progress for the device.
+     * @return True if the write has been sent or queued, False otherwise
+     */
+
+    private boolean queueWriteRequest(String deviceAddress, String uuid, WriteCharacteristicRequest request)
+    {
+        //Check if the given characterisitc exists and can be written
+        BluetoothGattCharacteristic characteristic = findCharacteristic(deviceAddress, uuid);
+        if(!checkWritability(deviceAddress, characteristic))
+            return false;
+
+        request.deviceAddress = deviceAddress;
+        request.uuid = uuid;
+        if (!writeCoalescing)
+            return operationScheduler.enqueue(deviceAddress, request);
+
+        request.value = encodeWriteRequest(request);
+        synchronized (operationScheduler)
+        {
+            if (coalesceWriteRequest(request))
+                return true;
+            return operationScheduler.enqueue(deviceAddress, request);
+        }
+    }
+
+
+    /**
+     * Enables/Disables the coalescing of the writes. When enabled, a write replaces the value of
+     * the write of the same characteristic still waiting in the queue, and a write of the value
+     * last acknowledged is skipped, unless another write of the characteristic is in progress.
+     * In this way there are never more than one write in progress and one waiting for each
+     * characteristic.
+     * @param enable if true, the writes are coalesced
+     */
+
+    public void setWriteCoalescing(boolean enable)
+    {
+        writeCoalescing = enable;
+        if (!enable)
+            lastWrittenValues.clear();
+    }
+
+
+    /**
+     * Merges the request with the ones already queued for its characteristic.
+     * It must be called holding the lock of the scheduler.
+     * @return True if the request does not need to be queued, False otherwise
+     */
+
+    private boolean coalesceWriteRequest(WriteCharacteristicRequest request)
+    {
+        for (GattOperationScheduler.Operation operation : operationScheduler.getPending(request.deviceAddress))
+        {
+            if (operation instanceof WriteCharacteristicRequest && ((WriteCharacteristicRequest) operation).uuid.equalsIgnoreCase(request.uuid))
+            {
+                WriteCharacteristicRequest pending = (WriteCharacteristicRequest) operation;
+                pending.type = request.type;
+                pending.intValue = request.intValue;
+                pending.floatValue = request.floatValue;
+                pending.stringValue = request.stringValue;
+                pending.value = request.value;
+                return true;
+            }
+        }
+
+        // The write in progress may fail or change the value: only once it is over the last
+        // value acknowledged is known
+        if (mayWrite(operationScheduler.getInFlight(request.deviceAddress), request.uuid))
+            return false;
+
+        Map<String, byte[]> deviceValues = lastWrittenValues.get(request.deviceAddress);
+        return deviceValues != null && Arrays.equals(deviceValues.get(request.uuid.toLowerCase()), request.value);
+    }
+
+
+    /**
+     * @return True if the operation can change the value of the characteristic
+     */
+
+    private boolean mayWrite(GattOperationScheduler.Operation operation, String uuid)
+    {
+        if (operation instanceof WriteCharacteristicRequest)
+            return ((WriteCharacteristicRequest) operation).uuid.equalsIgnoreCase(uuid);
+        if (operation instanceof GroupWriteRequest)
+            return ((GroupWriteRequest) operation).target.uuid.equalsIgnoreCase(uuid);
+        if (operation instanceof TransferChunkRequest)
+            return ((TransferChunkRequest) operation).transfer.uuid.equalsIgnoreCase(uuid);
+        return operation instanceof WriteTransaction;
+    }
+
+
+    /**
+     * Records the last value acknowledged for the characteristic, used to coalesce the writes
+     * @param value the value written, null if it is not known
+     */
+
+    private void rememberWrittenValue(String deviceAddress, String uuid, byte[] value)
+    {
+        Map<String, byte[]> deviceValues = lastWrittenValues.get(deviceAddress);
+        if (value == null)
+        {
+            if (deviceValues != null)
+                deviceValues.remove(uuid.toLowerCase());
+            return;
+        }
+        if (!writeCoalescing)
+            return;
+
+        if (deviceValues == null)
+        {
+            deviceValues = new ConcurrentHashMap<>();
+            lastWrittenValues.put(deviceAddress, deviceValues);
+        }
+        deviceValues.put(uuid.toLowerCase(), value);
+    }
+
+
+    /**
+     * @return The bytes sent by the request, used to compare the values of the writes
+     */
+
+    private byte[] encodeWriteRequest(WriteCharacteristicRequest request)
+    {
+        switch (request.type) {
+            case INT:
+                return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(request.intValue).array();
+            case FLOAT:
+                return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(Float.floatToIntBits(request.floatValue)).array();
+            case BYTE:
+                return new byte[]{(byte) request.intValue};
+            default:
+                return request.stringValue.getBytes();
+        }
+    }
+
+
+    /**
+     * Sets the value of the request in its characteristic and sends it
+     * @return True on success, false otherwise
+     */
+
+    private boolean sendWriteRequest(WriteCharacteristicRequest request)
+    {
+        BluetoothGatt bluetoothGatt = bluetoothGatts.get(request.deviceAddress);
+        if(bluetoothGatt == null)
+            return false;
+        BluetoothGattCharacteristic characteristic = findCharacteristic(request.deviceAddress, request.uuid);
+        if(!checkWritability(request.deviceAddress, characteristic))
+            return false;
+
+        boolean set = false;
+        switch (request.type) {
+            case INT:
+                set = characteristic.setValue(request.intValue, BluetoothGattCharacteristic.FORMAT_UINT32, 0);
+                break;
+            case FLOAT:
+                // The float cannot be directly sent, so it is converted to a UINT32 (without truncating it)
+                //and the conversion will be done by the receiver
+                Integer intBits = Float.floatToIntBits(request.floatValue);
+                set = characteristic.setValue(intBits, BluetoothGattCharacteristic.FORMAT_UINT32, 0);
+                break;
+            case BYTE:
+                //Format is UINT8 so that the given int is treated as a byte
+                set = characteristic.setValue(request.intValue, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+                break;
+            case STRING:
+                set = characteristic.setValue(request.stringValue);
+                break;
+        }
+
+        // write the characterisitc
+        boolean written = set && bluetoothGatt.writeCharacteristic(characteristic);
+        trace(TraceBuffer.WRITE_REQUEST, request.deviceAddress, characteristic.getInstanceId(), written ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE);
+        if (!written && PluginLog.isLoggable(Log.ERROR))
+            Log.e("ConnectionManager", "writeCharacteristic failed for ".concat(request.uuid));
+        return written;
+    }
+
+
+    /**
+     * Creates a group of characteristics, possibly of different devices, that are written all
+     * together with the writeGroup methods. An existing group with the same name is emptied.
+     * @param groupName
+     */
+
+    public void createWriteGroup(String groupName) {
+        writeGroups.put(groupName, new ArrayList<WriteGroupTarget>());
+    }
+
+
+    /**
+     * Adds a characteristic to the group
+     * @return True if the target has been added, False if the group does not exist
+     */
+
+    public boolean addWriteGroupTarget(String groupName, String deviceAddress, String uuid)
+    {
+        List<WriteGroupTarget> targets = writeGroups.get(groupName);
+        if (targets == null)
+            return false;
+
+        WriteGroupTarget target = new WriteGroupTarget();
+        target.deviceAddress = deviceAddress;
+        target.uuid = uuid;
+        targets.add(target);
+        return true;
+    }
+
+
+    public void removeWriteGroup(String groupName) {
+        writeGroups.remove(groupName);
+    }
+
+
+    /**
+     * Writes the value to all the characteristics of the group. The writes are queued in parallel
+     * on every device and the signal group_write_completed reports how many of them succeeded and
+     * the time between the first and the last completion, in milliseconds.
+     * @return True if the writes have been started, False if the group does not exist or is empty
+     */
+
+    public boolean writeGroupInt(String groupName, int value)
+    {
+        WriteCharacteristicRequest request = new WriteCharacteristicRequest();
+        request.type = CharacteristicType.INT;
+        request.intValue = value;
+        return writeGroup(groupName, encodeWriteRequest(request));
+    }
+
+
+    /**
+     * See writeGroupInt. The value is treated as an 8 bit int.
+     */
+
+    public boolean writeGroupByte(String groupName, int value)
+    {
+        WriteCharacteristicRequest request = new WriteCharacteristicRequest();
+        request.type = CharacteristicType.BYTE;
+        request.intValue = value;
+        return writeGroup(groupName, encodeWriteRequest(request));
+    }
+
+
+    /**
+     * See writeGroupInt
+     */
+
+    public boolean writeGroupFloat(String groupName, float value)
+    {
+        WriteCharacteristicRequest request = new WriteCharacteristicRequest();
+        request.type = CharacteristicType.FLOAT;
+        request.floatValue = value;
+        return writeGroup(groupName, encodeWriteRequest(request));
+    }
+
+
+    /**
+     * See writeGroupInt
+     */
+
+    public boolean writeGroupString(String groupName, String value)
+    {
+        WriteCharacteristicRequest request = new WriteCharacteristicRequest();
+        request.type = CharacteristicType.STRING;
+        request.stringValue = value;
+        return writeGroup(groupName, encodeWriteRequest(request));
+    }
+
+
+    // The value is encoded once and queued for every target
+    private boolean writeGroup(String groupName, byte[] value)
+    {
+        List<WriteGroupTarget> targets = writeGroups.get(groupName);
+        if (targets == null || targets.isEmpty())
+            return false;
+
+        GroupWrite groupWrite = new GroupWrite();
+        groupWrite.groupName = groupName;
+        groupWrite.pending = targets.size();
+
+        synchronized (operationScheduler)
+        {
+            for (WriteGroupTarget target : targets)
+            {
+                GroupWriteRequest request = new GroupWriteRequest();
+                request.target = target;
+                request.value = value;
+                request.groupWrite = groupWrite;
+                operationScheduler.enqueue(target.deviceAddress, request);
+            }
+        }
+        return true;
+    }
+
+
+    private boolean sendGroupWrite(GroupWriteRequest request)
+    {
+        WriteGroupTarget target = request.target;
+        BluetoothGatt bluetoothGatt = bluetoothGatts.get(target.deviceAddress);
+        if (bluetoothGatt == null)
+            return false;
+
+        // The characteristic is looked up and checked only once for each connection
+        if (target.gatt != bluetoothGatt)
+        {
+            BluetoothGattCharacteristic characteristic = findCharacteristic(target.deviceAddress, target.uuid);
+            if (!checkWritability(target.deviceAddress, characteristic))
+                return false;
+
+            target.gatt = bluetoothGatt;
+            target.characteristic = characteristic;
+            target.writeType = characteristic.getWriteType();
+        }
+
+        target.characteristic.setWriteType(target.writeType);
+        boolean written = target.characteristic.setValue(request.value) && bluetoothGatt.writeCharacteristic(target.characteristic);
+        trace(TraceBuffer.WRITE_REQUEST, target.deviceAddress, target.characteristic.getInstanceId(), written ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE);
+        return written;
+    }
+
+
+    private void completeGroupWrite(GroupWrite groupWrite, boolean success)
+    {
+        synchronized (groupWrite)
+        {
+            long now = System.nanoTime();
+            if (groupWrite.firstCompletion == 0)
+                groupWrite.firstCompletion = now;
+            groupWrite.lastCompletion = now;
+
+            if (success)
+                groupWrite.succeeded++;
+            else
+                groupWrite.failed++;
+
+            groupWrite.pending--;
+            if (groupWrite.pending > 0)
+                return;
+        }
+
+        float spreadMs = (groupWrite.lastCompletion - groupWrite.firstCompletion) / 1e6f;
+        dispatchSignal("group_write_completed", groupWrite.groupName, groupWrite.succeeded, groupWrite.failed, spreadMs);
+    }
+
+
+    /**
+     * Sends the given data to the characteristic in chunks as large as the MTU allows, without
+     * involving the script. The signal transfer_progress is emitted at every checkpoint and
+     * transfer_completed, with the CRC32 of the data, at the end. If the device is disconnected,
+     * the transfer resumes from the last checkpoint as soon as its services are discovered again.
+     * Every chunk starts with the offset of its data (4 bytes, little endian), so the chunks sent
+     * again on resume are written by the peripheral at the same position.
+     * @param uuid UUID of the characteristic to write
+     * @param data bytes to send
+     * @param withResponse if true every chunk is acknowledged, otherwise only one every "window"
+     * @param window number of chunks sent for each checkpoint when withResponse is false
+     * @return True if the transfer has been started, False otherwise
+     */
+
+    public boolean startTransfer(String deviceAddress, String uuid, byte[] data, boolean withResponse, int window)
+    {
+        if(data == null || data.length == 0)
+            return false;
+        if(!checkWritability(deviceAddress, findCharacteristic(deviceAddress, uuid)))
+            return false;
+
+        BulkTransfer current = transfers.get(deviceAddress);
+        if (current != null && !current.isPaused())
+        {
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("BulkTransfer", "A transfer is already in progress for ".concat(deviceAddress));
+            return false;
+        }
+
+        BulkTransfer transfer = new BulkTransfer(deviceAddress, uuid, data, withResponse, window);
+        transfers.put(deviceAddress, transfer);
+        completedTransferCrcs.remove(deviceAddress);
+        queueNextTransferChunk(transfer);
+        return true;
+    }
+
+
+    /**
+     * Sends the content of a file to the characteristic, see startTransfer
+     * @param path absolute path of the file
+     * @return True if the transfer has been started, False otherwise
+     */
+
+    public boolean startFileTransfer(String deviceAddress, String uuid, String path, boolean withResponse, int window)
+    {
+        File file = new File(path);
+        byte[] data = new byte[(int) file.length()];
+        try (FileInputStream input = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length)
+            {
+                int n = input.read(data, read, data.length - read);
+                if (n < 0)
+                    break;
+                read += n;
+            }
+        } catch (IOException e) {
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("BulkTransfer", "Impossible to read ".concat(path));
+            return false;
+        }
+
+        return startTransfer(deviceAddress, uuid, data, withResponse, window);
+    }
+
+
+    /**
+     * Resumes an interrupted transfer from its last checkpoint. The chunks sent without response
+     * after it are sent again, at the same offsets.
+     * @return True if the transfer has been resumed, False otherwise
+     */
+
+    public boolean resumeTransfer(String deviceAddress)
+    {
+        BulkTransfer transfer = transfers.get(deviceAddress);
+        if (transfer == null || !bluetoothGatts.containsKey(deviceAddress) || !transfer.resume())
+            return false;
+
+        if (PluginLog.isLoggable(Log.INFO))
+            Log.i("BulkTransfer", "Resuming transfer to ".concat(deviceAddress).concat(" from byte ").concat(String.valueOf(transfer.ackedOffset)));
+        queueNextTransferChunk(transfer);
+        return true;
+    }
+
+
+    /**
+     * Stops the transfer of the device. The chunk being sent, if any, is not recalled.
+     */
+
+    public void cancelTransfer(String deviceAddress)
+    {
+        BulkTransfer transfer = transfers.remove(deviceAddress);
+        if (transfer == null)
+            return;
+
+        synchronized (operationScheduler)
+        {
+            Iterator<GattOperationScheduler.Operation> it = operationScheduler.getPending(deviceAddress).iterator();
+            while (it.hasNext())
+            {
+                GattOperationScheduler.Operation operation = it.next();
+                if (operation instanceof TransferChunkRequest && ((TransferChunkRequest) operation).transfer == transfer)
+                    it.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Reads the CRC32 computed by the peripheral on the data received with the last transfer and
+     * compares it with the one of the data sent. The result is notified by transfer_verified.
+     * @param crcUuid UUID of the characteristic holding the CRC32 (4 bytes, little endian)
+     * @return True if the read has been started, False otherwise
+     */
+
+    public boolean verifyTransfer(String deviceAddress, String crcUuid)
+    {
+        Integer crc = completedTransferCrcs.get(deviceAddress);
+        if (crc == null)
+            return false;
+        BluetoothGattCharacteristic characteristic = findCharacteristic(deviceAddress, crcUuid);
+        if (characteristic == null || !isReadable(deviceAddress, crcUuid))
+            return false;
+
+        TransferCrcRead request = new TransferCrcRead();
+        request.deviceAddress = deviceAddress;
+        request.characteristic = characteristic;
+        request.expectedCrc = crc;
+        return operationScheduler.enqueue(deviceAddress, request);
+    }
+
+
+    // Queues the next chunk of the transfer. Only one chunk at a time is queued, so that the
+    // operations of the other devices and the other operations of the same device are interleaved
+    private void queueNextTransferChunk(BulkTransfer transfer)
+    {
+        if (!transfer.hasDataToSend())
+            return;
+
+        Integer mtu = deviceMtus.get(transfer.deviceAddress);
+        int chunkSize = (mtu != null ? mtu : DEFAULT_MTU) - 3 - BulkTransfer.OFFSET_BYTES;
+
+        TransferChunkRequest chunk = new TransferChunkRequest();
+        chunk.transfer = transfer;
+        chunk.offset = transfer.sentOffset;
+        chunk.length = Math.min(chunkSize, transfer.data.length - transfer.sentOffset);
+        chunk.checkpoint = transfer.isNextChunkCheckpoint(chunk.length);
+
+        transfer.sentOffset += chunk.length;
+        transfer.chunksSinceCheckpoint = chunk.checkpoint ? 0 : transfer.chunksSinceCheckpoint + 1;
+        operationScheduler.enqueue(transfer.deviceAddress, chunk);
+    }
+
+
+    private boolean sendTransferChunk(TransferChunkRequest chunk)
+    {
+        BulkTransfer transfer = chunk.transfer;
+        BluetoothGatt bluetoothGatt = bluetoothGatts.get(transfer.deviceAddress);
+        BluetoothGattCharacteristic characteristic = findCharacteristic(transfer.deviceAddress, transfer.uuid);
+        if (bluetoothGatt == null || characteristic == null)
+        {
+            failTransfer(transfer, "Device not connected");
+            return false;
+        }
+
+        // Checkpoints are sent with response, if the characteristic allows it
+        boolean withResponse = isWritable(transfer.deviceAddress, transfer.uuid);
+        if (!chunk.checkpoint && isWritableNoResponse(transfer.deviceAddress, transfer.uuid))
+            withResponse = false;
+        characteristic.setWriteType(withResponse ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+
+        boolean set = characteristic.setValue(transfer.getChunk(chunk.offset, chunk.length));
+        boolean written = set && bluetoothGatt.writeCharacteristic(characteristic);
+        trace(TraceBuffer.WRITE_REQUEST, transfer.deviceAddress, characteristic.getInstanceId(), written ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE);
+        if (written)
+            return true;
+
+        failTransfer(transfer, "Write of the chunk at byte ".concat(String.valueOf(chunk.offset)).concat(" failed"));
+        return false;
+    }
+
+
+    private void onTransferChunkWritten(TransferChunkRequest chunk, int status)
+    {
+        BulkTransfer transfer = chunk.transfer;
+
+        // The transfer has been cancelled or replaced
+        if (transfers.get(transfer.deviceAddress) != transfer)
+            return;
+
+        if (status != BluetoothGatt.GATT_SUCCESS)
+        {
+            failTransfer(transfer, "Chunk at byte ".concat(String.valueOf(chunk.offset)).concat(" failed, error: ").concat(String.valueOf(status)));
+            return;
+        }
+
+        if (chunk.checkpoint)
+        {
+            transfer.ackedOffset = chunk.offset + chunk.length;
+            dispatchSignal("transfer_progress", transfer.deviceAddress, transfer.ackedOffset, transfer.data.length);
+        }
+
+        if (transfer.isComplete())
+        {
+            transfers.remove(transfer.deviceAddress);
+            completedTransferCrcs.put(transfer.deviceAddress, transfer.crc);
+            if (PluginLog.isLoggable(Log.INFO))
+                Log.i("BulkTransfer", "Transfer completed to ".concat(transfer.deviceAddress));
+            dispatchSignal("transfer_completed", transfer.deviceAddress, transfer.uuid, transfer.crc);
+        }
+        else
+            queueNextTransferChunk(transfer);
+    }
+
+
+    private void onTransferCrcRead(TransferCrcRead request, byte[] value, int status)
+    {
+        boolean verified = status == BluetoothGatt.GATT_SUCCESS && value != null && value.length >= 4
+                && ByteBuffer.wrap(value, 0, 4).order(ByteOrder.LITTLE_ENDIAN).getInt() == request.expectedCrc;
+        dispatchSignal("transfer_verified", request.deviceAddress, verified);
     }
 
-    /**
-     * Disconnect from the device
-     */
 
-    public void disconnect(String deviceAddress)
+    // Stops the transfer at its last checkpoint, it can be restarted with resumeTransfer
+    private void failTransfer(BulkTransfer transfer, String message)
     {
-        characteristicMap.remove(deviceAddress);
-        serviceMap.remove(deviceAddress);
-        bluetoothGatts.get(deviceAddress).disconnect();
-        bluetoothGatts.get(deviceAddress).close();
+        if (PluginLog.isLoggable(Log.ERROR))
+            Log.e("BulkTransfer", message);
+        transfer.pause();
+        dispatchSignal("transfer_failed", transfer.deviceAddress, message);
     }
 
 
     /**
-     * @return True if we are currecntly connected to a device, false otherwise
+     * It checks the writability of the given characteristic and set the proper write type
      */
 
-    public boolean isConnected(String deviceAddress)
+    private boolean checkWritability(String deviceAddress, BluetoothGattCharacteristic characteristic)
     {
-        return bluetoothGatts.containsKey(deviceAddress);
+        if(characteristic == null)
+            return false;
+
+        if (bluetoothAdapter == null)
+        {
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("ERROR", "BluetoothAdapter not initialized");
+            return false;
+        }
+
+        if(isWritable(deviceAddress, characteristic.getUuid().toString()))
+        {
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            if (PluginLog.isLoggable(Log.INFO))
+                Log.i("Charact property", "PROPERY WRITE");
+        }
+        else if(isWritableNoResponse(deviceAddress, characteristic.getUuid().toString()))
+        {
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            if (PluginLog.isLoggable(Log.INFO))
+                Log.i("Charact property", "PROPERY WRITE NO RESPONSE");
+        }
+        else
+        {
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("ERROR", "Characteristic is not writable");
+            return false;
+        }
+
+        return true;
     }
 
 
     /**
-     * @param uuid Service to be search in the device we are connected to
-     * @return True if the device provides the service with this uuid, False otherwise
+     * Reads from the characteristic with the given UUID.
+     * @param uuid
+     * @return True on success, False otherwise.
      */
 
-    public boolean hasService(String deviceAddress, String uuid)
+    public boolean readCharacteristic(String deviceAddress, String uuid)
     {
-        Map<String, BluetoothGattService> deviceServices = serviceMap.get(deviceAddress);
-        if(deviceServices == null) return false;
-        return deviceServices.containsKey(uuid.toLowerCase());
+        //Check if the characterisitc exists
+        BluetoothGattCharacteristic characteristic = findCharacteristic(deviceAddress, uuid);
+        if(characteristic == null)
+            return false;
+
+        if (bluetoothAdapter == null)
+        {
+            if (PluginLog.isLoggable(Log.WARN))
+                Log.w("ERROR", "BluetoothAdapter not initialized");
+            return false;
+        }
+
+        if(!isReadable(deviceAddress, characteristic.getUuid().toString()))
+        {
+            if (PluginLog.isLoggable(Log.WARN))
+                Log.w("ERROR", "Characteristic is not readable");
+            return false;
+        }
+
+        ReadCharacteristicRequest request = new ReadCharacteristicRequest();
+        request.deviceAddress = deviceAddress;
+        request.characteristic = characteristic;
+        return operationScheduler.enqueue(deviceAddress, request);
+        //The actual value is sent as a signal from the callback onCharacteristicRead
     }
 
 
     /**
-     * @param uuid Characteristic to be search in the device we are connected to
-     * @return True if the device provides the characteristic with this uuid, False otherwise
+     * Returns the last value of the characteristic received with a read or a notification, or
+     * written by the app. If the value is older than maxAgeMs (or unknown) an empty array is
+     * returned and the characteristic is read: the new value is sent with the signal
+     * characteristic_read and it is cached as well.
+     * @param maxAgeMs maximum age of the value in milliseconds
+     * @return The cached value, empty if it is missing or too old
      */
 
-    public boolean hasCharacteristic(String deviceAddress, String uuid)
+    public byte[] getCachedValue(String deviceAddress, String uuid, int maxAgeMs)
     {
-        Map<String, BluetoothGattCharacteristic> deviceCharacteristics = characteristicMap.get(deviceAddress);
-        if(deviceCharacteristics == null) return false;
-        return deviceCharacteristics.containsKey(uuid.toLowerCase());
+        CachedValue cached = null;
+        Map<String, CachedValue> deviceValues = valueCache.get(deviceAddress);
+        if (deviceValues != null)
+            cached = deviceValues.get(uuid.toLowerCase());
+
+        if (cached != null && SystemClock.elapsedRealtime() - cached.timestamp <= maxAgeMs)
+            return cached.value;
+
+        // Stale: read it, unless a read of the same characteristic is already queued
+        synchronized (operationScheduler)
+        {
+            boolean pending = isReadPending(operationScheduler.getInFlight(deviceAddress), uuid);
+            for (GattOperationScheduler.Operation operation : operationScheduler.getPending(deviceAddress))
+                pending = pending || isReadPending(operation, uuid);
+
+            if (!pending)
+                readCharacteristic(deviceAddress, uuid);
+        }
+        return new byte[0];
     }
 
 
     /**
-     * Enables/Disables the notifications for the given UUID characteristic
-     * @param uuid UUID of the characteristic of which enable/disable notifications
-     * @param enable if true, notifications are enabled. if false, they are disabled
-     * @return True if the operation succeeds, False otherwise
+     * @return The age in milliseconds of the cached value of the characteristic, -1 if there is none
      */
 
-    public boolean setCharacteristicNotifications(String deviceAddress, String uuid, boolean enable)
+    public int getCachedValueAge(String deviceAddress, String uuid)
     {
-        Map<String, BluetoothGattCharacteristic> deviceCharacteristics = characteristicMap.get(deviceAddress);
-        if(deviceCharacteristics == null)
-            return false;
-        return enableNotifications(deviceAddress, deviceCharacteristics.get(uuid.toLowerCase()), enable);
+        Map<String, CachedValue> deviceValues = valueCache.get(deviceAddress);
+        CachedValue cached = deviceValues == null ? null : deviceValues.get(uuid.toLowerCase());
+        if (cached == null)
+            return -1;
+        return (int) Math.min(Integer.MAX_VALUE, SystemClock.elapsedRealtime() - cached.timestamp);
+    }
+
+
+    private boolean isReadPending(GattOperationScheduler.Operation operation, String uuid)
+    {
+        return operation instanceof ReadCharacteristicRequest
+                && ((ReadCharacteristicRequest) operation).characteristic.getUuid().toString().equalsIgnoreCase(uuid);
+    }
+
+
+    private void cacheValue(String deviceAddress, BluetoothGattCharacteristic characteristic, byte[] value)
+    {
+        if (value == null)
+            return;
+
+        Map<String, CachedValue> deviceValues = valueCache.get(deviceAddress);
+        if (deviceValues == null)
+        {
+            deviceValues = new ConcurrentHashMap<>();
+            valueCache.put(deviceAddress, deviceValues);
+        }
+
+        CachedValue cached = new CachedValue();
+        cached.value = value;
+        cached.timestamp = SystemClock.elapsedRealtime();
+        deviceValues.put(characteristic.getUuid().toString().toLowerCase(), cached);
     }
 
 
     /**
-     * Enables/Disables notifications for the given characteristic setting the value of the
-     * CCC descriptor.
-     * @param characteristic Characteristic of which we want to enable/disable notifications
-     * @param enable if true, notifications are enabled. if false, they are disabled
-     * @returnTrue if the operation succeeds, False otherwise
+     * Opens a reliable write transaction for the given device. The writes added with
+     * addTransactionWrite are not sent until executeWriteTransaction is called.
+     * @param deviceAddress
+     * @return True if the transaction has been opened, False otherwise
      */
 
-    private boolean enableNotifications(String deviceAddress, BluetoothGattCharacteristic characteristic, boolean enable)
+    public boolean beginWriteTransaction(String deviceAddress)
     {
-        if(characteristic ==  null)
+        if (!bluetoothGatts.containsKey(deviceAddress) || writeTransactions.containsKey(deviceAddress))
             return false;
 
-        BluetoothGatt bluetoothGatt = bluetoothGatts.get(deviceAddress);
+        WriteTransaction transaction = new WriteTransaction();
+        transaction.deviceAddress = deviceAddress;
+        writeTransactions.put(deviceAddress, transaction);
+        return true;
+    }
 
-        //If possible and enable=True, enable notifications. Otherwise indications
-        UUID cccdUuid = UUID.fromString(CCC_DESCRIPTOR_UUID);
 
-        byte[] payload = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;;
+    /**
+     * Adds a write to the transaction opened for the given device. During a reliable write every
+     * value is sent with a single Prepare Write request, so it cannot be longer than the MTU - 5.
+     * @param uuid UUID of the characteristic to write. It must be writable with response.
+     * @param value new value, at most MTU - 5 bytes
+     * @return True if the write has been added, False otherwise
+     */
 
-        if(isNotifiable(deviceAddress, characteristic.getUuid().toString()))
-        {
-            Log.w("ConnectionManager", " isNotifiable");
-            if (enable)
-                payload = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
-            else if (isIndicatable(deviceAddress, characteristic.getUuid().toString()))
-                if (enable) payload = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
-                else {
-                    Log.e("ConnectionManager", characteristic.getUuid().toString().concat(" doesn't support notifications/indications"));
-                    return false;
-                }
-        }
-        else {
-            Log.w("ConnetionManager", characteristic.getUuid().toString().concat(" is not notifiable"));
+    public boolean addTransactionWrite(String deviceAddress, String uuid, byte[] value)
+    {
+        WriteTransaction transaction = writeTransactions.get(deviceAddress);
+        if (transaction == null || transaction.executing)
             return false;
-        }
 
-        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(cccdUuid);
+        BluetoothGattCharacteristic characteristic = findCharacteristic(deviceAddress, uuid);
+        if(characteristic == null)
+            return false;
 
-        if (bluetoothGatt.setCharacteristicNotification(characteristic, enable) == false)
+        // Reliable writes need the acknowledgement of the peripheral
+        if(!isWritable(deviceAddress, uuid))
         {
-            Log.e("ConnectionManager", "setCharacteristicNotification failed for ".concat(characteristic.getUuid().toString()));
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("ERROR", "Characteristic is not writable with response");
             return false;
         }
 
-        if (descriptor == null)
+        // Android would send only the first segment of a longer value
+        Integer mtu = deviceMtus.get(deviceAddress);
+        int maxLength = (mtu != null ? mtu : DEFAULT_MTU) - 5;
+        if(value == null || value.length > maxLength)
         {
-            Log.w("ConnectionManager", " Descriptor is null for "+characteristic.toString());
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("ERROR", "Transaction write longer than ".concat(String.valueOf(maxLength)).concat(" bytes"));
             return false;
         }
-        else{
-            boolean set = descriptor.setValue(payload);
-            boolean written = bluetoothGatt.writeDescriptor(descriptor);
 
-            return set && written;
-        }
+        TransactionWrite write = new TransactionWrite();
+        write.characteristic = characteristic;
+        write.value = value;
+        transaction.pendingWrites.add(write);
+        return true;
     }
 
 
     /**
-     * Change the value of characteristic with the given UUID to "value"
-     * @param uuid UUID of the characterisitc we want to change the value of
-     * @param value new value
-     * @return True on success, false otherwise
+     * Sends all the writes of the transaction one after the other and then asks the peripheral
+     * to commit them. The transaction waits in the queue of the device if other operations are
+     * in progress. The result is notified by the signal write_transaction_completed.
+     * @param deviceAddress
+     * @return True if the transaction has been started or queued, False otherwise
      */
 
-    public boolean writeIntCharacteristic(String deviceAddress, String uuid, int value)
+    public boolean executeWriteTransaction(String deviceAddress)
     {
-        //Check if the given characterisitc exists and can be written
-        Map<String, BluetoothGattCharacteristic> deviceCharacteristics = characteristicMap.get(deviceAddress);
-        if(deviceCharacteristics == null)
-            return false;
-        BluetoothGattCharacteristic characteristic = deviceCharacteristics.get(uuid.toLowerCase());
-        if(!checkWritability(deviceAddress, characteristic))
+        WriteTransaction transaction = writeTransactions.get(deviceAddress);
+        if (transaction == null || transaction.executing || !bluetoothGatts.containsKey(deviceAddress))
             return false;
 
-        boolean set=false;
-        boolean written=false;
-        if(writeCharacteristicsQueue.isEmpty())
+        if (transaction.pendingWrites.isEmpty())
         {
-            //Set the new value and send it
-            set = characteristic.setValue(value, BluetoothGattCharacteristic.FORMAT_UINT32, 0);
-            written = bluetoothGatts.get(deviceAddress).writeCharacteristic(characteristic);
-        }
-        else{
-            WriteCharacteristicRequest newCharacteristicRequest = new WriteCharacteristicRequest();
-            newCharacteristicRequest.type = CharacteristicType.INT;
-            newCharacteristicRequest.deviceAddress = deviceAddress;
-            newCharacteristicRequest.uuid = uuid;
-            newCharacteristicRequest.intValue = value;
-            writeCharacteristicsQueue.add(newCharacteristicRequest);
-            set = false;
-            written = false;
+            writeTransactions.remove(deviceAddress);
+            dispatchSignal("write_transaction_completed", deviceAddress, true);
+            return true;
         }
 
-        return set && written;
+        transaction.executing = true;
+        return operationScheduler.enqueue(deviceAddress, transaction);
     }
 
 
     /**
-     * Change the value of characteristic with the given UUID to "value"
-     * @param uuid UUID of the characterisitc we want to change the value of
-     * @param value new value. It is an int because Godot does not support bytes. It is treated as an 8 bit int.
-     * @return True on success, false otherwise
+     * Discards the transaction opened for the given device. If it is being executed, the
+     * peripheral is asked to drop all the values already prepared. A transaction already being
+     * committed is not aborted and its result is notified as usual.
+     * @param deviceAddress
      */
 
-    public boolean writeByteCharacteristic(String deviceAddress, String uuid, int value)
+    public void abortWriteTransaction(String deviceAddress)
     {
-        Map<String, BluetoothGattCharacteristic> deviceCharacteristics = characteristicMap.get(deviceAddress);
-        if(deviceCharacteristics == null)
-            return false;
-        BluetoothGattCharacteristic characteristic = deviceCharacteristics.get(uuid.toLowerCase());
-        if(!checkWritability(deviceAddress, characteristic))
-            return false;
+        WriteTransaction transaction = writeTransactions.get(deviceAddress);
+        if (transaction == null || transaction.committing)
+            return;
+
+        writeTransactions.remove(deviceAddress);
+        if (!transaction.executing)
+            return;
 
-        boolean set= false;
-        boolean written = false;
-        if(writeCharacteristicsQueue.isEmpty())
+        // Not started yet
+        if (operationScheduler.remove(deviceAddress, transaction))
         {
-            //Format is UINT8 so that the given int is treated as a byte
-            set = characteristic.setValue(value, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-            written = bluetoothGatts.get(deviceAddress).writeCharacteristic(characteristic);
-        }
-        else{
-            WriteCharacteristicRequest newCharacteristicRequest = new WriteCharacteristicRequest();
-            newCharacteristicRequest.type = CharacteristicType.BYTE;
-            newCharacteristicRequest.deviceAddress = deviceAddress;
-            newCharacteristicRequest.uuid = uuid;
-            newCharacteristicRequest.intValue = value;
-            writeCharacteristicsQueue.add(newCharacteristicRequest);
-            set = false;
-            written = false;
+            dispatchSignal("write_transaction_completed", deviceAddress, false);
+            return;
         }
 
-        return set && written;
+        BluetoothGatt bluetoothGatt = bluetoothGatts.get(deviceAddress);
+        if (bluetoothGatt != null)
+            abortTransaction(bluetoothGatt, transaction);
     }
 
 
     /**
-     * Change the value of characteristic with the given UUID to "value"
-     * @param uuid UUID of the characterisitc we want to change the value of
-     * @param value new value.
-     * @return True on success, false otherwise
+     * Starts the reliable write and sends the first write of the transaction
+     * @return True if the reliable write has been started, False otherwise
      */
 
-    public boolean writeStringCharacteristic(String deviceAddress, String uuid, String value)
+    private boolean startWriteTransaction(WriteTransaction transaction)
     {
-        Map<String, BluetoothGattCharacteristic> deviceCharacteristics = characteristicMap.get(deviceAddress);
-        if(deviceCharacteristics == null) return false;
-        BluetoothGattCharacteristic characteristic = deviceCharacteristics.get(uuid.toLowerCase());
-        if(!checkWritability(deviceAddress, characteristic)) return false;
-
-        boolean set=false;
-        boolean written=false;
-        if(writeCharacteristicsQueue.isEmpty())
+        BluetoothGatt bluetoothGatt = bluetoothGatts.get(transaction.deviceAddress);
+        if (bluetoothGatt == null || !bluetoothGatt.beginReliableWrite())
         {
-            set = characteristic.setValue(value);
-            written = bluetoothGatts.get(deviceAddress).writeCharacteristic(characteristic);
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("ConnectionManager", "beginReliableWrite failed for ".concat(transaction.deviceAddress));
+            writeTransactions.remove(transaction.deviceAddress);
+            dispatchSignal("write_transaction_completed", transaction.deviceAddress, false);
+            return false;
         }
-        else
+
+        // The operation stays in progress until onReliableWriteCompleted, even if aborted
+        synchronized (transaction)
         {
-            WriteCharacteristicRequest newCharacteristicRequest = new WriteCharacteristicRequest();
-            newCharacteristicRequest.type = CharacteristicType.STRING;
-            newCharacteristicRequest.deviceAddress = deviceAddress;
-            newCharacteristicRequest.uuid = uuid;
-            newCharacteristicRequest.stringValue = value;
-            writeCharacteristicsQueue.add(newCharacteristicRequest);
-            set = false;
-            written = false;
+            if (!sendTransactionWrite(bluetoothGatt, transaction))
+                abortTransaction(bluetoothGatt, transaction);
         }
-
-        return set && written;
+        return true;
     }
 
 
     /**
-     * Change the value of characteristic with the given UUID to "value"
-     * @param uuid UUID of the characterisitc we want to change the value of
-     * @param value new value.
-     * @return True on success, false otherwise
+     * Aborts a transaction in progress. The peripheral answers with onReliableWriteCompleted,
+     * which completes the operation. If a write is waiting for its acknowledgement the abort is
+     * sent once it arrives, since Android refuses it while another operation is pending.
      */
 
-    public boolean writeFloatCharacteristic(String deviceAddress, String uuid, float value)
+    private void abortTransaction(BluetoothGatt bluetoothGatt, WriteTransaction transaction)
     {
-        Map<String, BluetoothGattCharacteristic> deviceCharacteristics = characteristicMap.get(deviceAddress);
-        if(deviceCharacteristics == null) return false;
-        BluetoothGattCharacteristic characteristic = deviceCharacteristics.get(uuid.toLowerCase());
-        if(!checkWritability(deviceAddress, characteristic)) return false;
-
-        boolean set=false;
-        boolean written=false;
-        if(writeCharacteristicsQueue.isEmpty())
+        synchronized (transaction)
         {
-            // The float cannot be directly sent, so it is converted to a UINT32 (without truncating it)
-            //and the conversion will be done by the receiver
-            Integer intBits = Float.floatToIntBits(value);
-            set = characteristic.setValue(intBits, BluetoothGattCharacteristic.FORMAT_UINT32, 0);
+            // Already being committed, its result is notified as usual
+            if (transaction.committing)
+                return;
 
-            written = bluetoothGatts.get(deviceAddress).writeCharacteristic(characteristic);
-        }
-        else{
-            WriteCharacteristicRequest newCharacteristicRequest = new WriteCharacteristicRequest();
-            newCharacteristicRequest.type = CharacteristicType.FLOAT;
-            newCharacteristicRequest.deviceAddress = deviceAddress;
-            newCharacteristicRequest.uuid = uuid;
-            newCharacteristicRequest.floatValue = value;
-            writeCharacteristicsQueue.add(newCharacteristicRequest);
-            set = false;
-            written = false;
+            transaction.aborted = true;
+            if (!transaction.writeInFlight)
+                bluetoothGatt.abortReliableWrite();
         }
+        if (writeTransactions.get(transaction.deviceAddress) == transaction)
+            writeTransactions.remove(transaction.deviceAddress);
 
-        return set && written;
+        dispatchSignal("write_transaction_completed", transaction.deviceAddress, false);
     }
 
 
     /**
-     * It checks the writability of the given characteristic and set the proper write type
+     * Sends the next write of the transaction
+     * @return True if the write has been sent, False otherwise
      */
 
-    private boolean checkWritability(String deviceAddress, BluetoothGattCharacteristic characteristic)
+    private boolean sendTransactionWrite(BluetoothGatt bluetoothGatt, WriteTransaction transaction)
     {
-        if(characteristic == null)
-            return false;
+        transaction.currentWrite = transaction.pendingWrites.poll();
+        transaction.sentWrites.add(transaction.currentWrite);
+        BluetoothGattCharacteristic characteristic = transaction.currentWrite.characteristic;
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        boolean set = characteristic.setValue(transaction.currentWrite.value);
+        boolean written = set && bluetoothGatt.writeCharacteristic(characteristic);
+        transaction.writeInFlight = written;
+        return written;
+    }
 
-        if (bluetoothAdapter == null)
+
+    /**
+     * Called for every write acknowledged during a transaction. If a write fails the whole
+     * transaction is aborted. The value echoed by the peripheral is not checked, since Android
+     * does not pass it to the app.
+     */
+
+    private void continueWriteTransaction(BluetoothGatt gatt, WriteTransaction transaction, BluetoothGattCharacteristic characteristic, int status)
+    {
+        boolean ok = status == BluetoothGatt.GATT_SUCCESS;
+        synchronized (transaction)
         {
-            Log.e("ERROR", "BluetoothAdapter not initialized");
-            return false;
+            transaction.writeInFlight = false;
+
+            // Aborted while the write was waiting for its acknowledgement: the abort can be sent now
+            if (transaction.aborted)
+            {
+                gatt.abortReliableWrite();
+                return;
+            }
+
+            if (ok && !transaction.pendingWrites.isEmpty())
+                ok = sendTransactionWrite(gatt, transaction);
+            else if (ok)
+            {
+                ok = gatt.executeReliableWrite();
+                transaction.committing = ok;
+            }
         }
 
-        if(isWritable(deviceAddress, characteristic.getUuid().toString()))
+        if (!ok)
         {
-            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-            Log.i("Charact property", "PROPERY WRITE");
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("BluetoothGattCallback", "Write transaction failed for ".concat(characteristic.getUuid().toString()).concat(", error: ").concat(String.valueOf(status)));
+            abortTransaction(gatt, transaction);
         }
-        else if(isWritableNoResponse(deviceAddress, characteristic.getUuid().toString()))
+    }
+
+
+    /**
+     * Opens an L2CAP connection-oriented channel to the given PSM of the device. It is available
+     * from Android 10 and it can be used alongside the GATT connection to stream large amounts of
+     * data. The signal l2cap_channel_opened is emitted when the channel is ready.
+     * @param psm Protocol/Service Multiplexer published by the peripheral
+     * @param secure if true, an encrypted channel is opened. The device must be bonded
+     * @return True if the connection has been started, False otherwise
+     */
+
+    public boolean openL2capChannel(String deviceAddress, int psm, boolean secure)
+    {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q)
         {
-            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-            Log.i("Charact property", "PROPERY WRITE NO RESPONSE");
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("ERROR", "L2CAP channels require Android 10");
+            return false;
         }
-        else
+
+        if (bluetoothAdapter == null)
         {
-            Log.e("ERROR", "Characteristic is not writable");
+            if (PluginLog.isLoggable(Log.ERROR))
+                Log.e("ERROR", "BluetoothAdapter not initialized");
             return false;
         }
 
+        if (l2capChannels.containsKey(deviceAddress))
+            return false;
+
+        if (l2capListener == null)
+            l2capListener = createL2capListener();
+
+        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
+        L2capChannel channel = new L2capChannel(device, psm, secure, l2capBatchBytes, l2capMaxQueuedBytes, l2capListener);
+        l2capChannels.put(deviceAddress, channel);
+        channel.open();
         return true;
     }
 
 
     /**
-     * Reads from the characteristic with the given UUID.
-     * @param uuid
-     * @return True on success, False otherwise.
+     * Sends data through the L2CAP channel of the device. If too much data is waiting to be sent
+     * the write is refused and the signal l2cap_write_ready is emitted once it can be retried.
+     * @param data bytes to send
+     * @return True if the data has been queued, False otherwise
      */
 
-    public boolean readCharacteristic(String deviceAddress, String uuid)
+    public boolean writeL2capChannel(String deviceAddress, byte[] data)
     {
-        //Check if the characterisitc exists
-        Map<String, BluetoothGattCharacteristic> deviceCharacteristics = characteristicMap.get(deviceAddress);
-        if(deviceCharacteristics == null)
-            return false;
-        BluetoothGattCharacteristic characteristic = deviceCharacteristics.get(uuid.toLowerCase());
-        if(characteristic == null)
+        L2capChannel channel = l2capChannels.get(deviceAddress);
+        if (channel == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q)
             return false;
 
-        if (bluetoothAdapter == null)
-        {
-            Log.w("ERROR", "BluetoothAdapter not initialized");
-            return false;
-        }
+        return channel.write(data);
+    }
 
-        if(!isReadable(deviceAddress, characteristic.getUuid().toString()))
+
+    /**
+     * Closes the L2CAP channel of the device
+     */
+
+    public void closeL2capChannel(String deviceAddress)
+    {
+        L2capChannel channel = l2capChannels.remove(deviceAddress);
+        if (channel != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            channel.close();
+    }
+
+
+    // Forwards the events of the L2CAP channels to Godot
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private L2capChannel.Listener createL2capListener()
+    {
+        return new L2capChannel.Listener()
         {
-            Log.w("ERROR", "Characteristic is not readable");
-            return false;
-        }
+            @Override
+            public void onChannelOpened(L2capChannel channel)
+            {
+                if (PluginLog.isLoggable(Log.INFO))
+                    Log.i("L2capChannel", "Channel opened to ".concat(channel.getDeviceAddress()));
+                dispatchSignal("l2cap_channel_opened", channel.getDeviceAddress(), channel.getPsm());
+            }
 
-        return bluetoothGatts.get(deviceAddress).readCharacteristic(characteristic);
-        //The actual value is sent as a signal from the callback onCharacteristicRead
+            @Override
+            public void onDataReceived(L2capChannel channel, byte[] data) {
+                dispatchSignal("l2cap_data_received", channel.getDeviceAddress(), data);
+            }
+
+            @Override
+            public void onWriteReady(L2capChannel channel) {
+                dispatchSignal("l2cap_write_ready", channel.getDeviceAddress());
+            }
+
+            @Override
+            public void onChannelClosed(L2capChannel channel, String error)
+            {
+                // A new channel may have already replaced this one
+                l2capChannels.remove(channel.getDeviceAddress(), channel);
+                dispatchSignal("l2cap_channel_closed", channel.getDeviceAddress(), error);
+            }
+        };
+    }
+
+
+    /**
+     * Sets the buffering of the L2CAP channels opened from now on
+     * @param batchBytes maximum number of bytes delivered with a single l2cap_data_received signal
+     * @param maxQueuedBytes maximum number of bytes waiting to be sent before the writes are refused
+     */
+
+    public void setL2capBuffering(int batchBytes, int maxQueuedBytes)
+    {
+        if (batchBytes > 0)
+            l2capBatchBytes = batchBytes;
+        if (maxQueuedBytes > 0)
+            l2capMaxQueuedBytes = maxQueuedBytes;
     }
 
 
@@ -878,10 +3275,7 @@ public class GodotBLE extends GodotPlugin
 
     public boolean isWritable(String deviceAddress, String uuid)
     {
-        Map<String, BluetoothGattCharacteristic> deviceCharacteristics = characteristicMap.get(deviceAddress);
-        if(deviceCharacteristics == null)
-            return false;
-        BluetoothGattCharacteristic characteristic = deviceCharacteristics.get(uuid.toLowerCase());
+        BluetoothGattCharacteristic characteristic = findCharacteristic(deviceAddress, uuid);
         if(characteristic ==  null)
             return false;
 
@@ -897,10 +3291,7 @@ public class GodotBLE extends GodotPlugin
 
     public boolean isWritableNoResponse(String deviceAddress, String uuid)
     {
-        Map<String, BluetoothGattCharacteristic> deviceCharacteristics = characteristicMap.get(deviceAddress);
-        if(deviceCharacteristics == null)
-            return false;
-        BluetoothGattCharacteristic characteristic = deviceCharacteristics.get(uuid.toLowerCase());
+        BluetoothGattCharacteristic characteristic = findCharacteristic(deviceAddress, uuid);
         if(characteristic ==  null)
             return false;
 
@@ -916,10 +3307,7 @@ public class GodotBLE extends GodotPlugin
 
     public boolean isReadable(String deviceAddress, String uuid)
     {
-        Map<String, BluetoothGattCharacteristic> deviceCharacteristics = characteristicMap.get(deviceAddress);
-        if(deviceCharacteristics == null)
-            return false;
-        BluetoothGattCharacteristic characteristic = deviceCharacteristics.get(uuid.toLowerCase());
+        BluetoothGattCharacteristic characteristic = findCharacteristic(deviceAddress, uuid);
         if(characteristic ==  null)
             return false;
 
@@ -935,10 +3323,7 @@ public class GodotBLE extends GodotPlugin
 
     public boolean isNotifiable(String deviceAddress, String uuid)
     {
-        Map<String, BluetoothGattCharacteristic> deviceCharacteristics = characteristicMap.get(deviceAddress);
-        if(deviceCharacteristics == null)
-            return false;
-        BluetoothGattCharacteristic characteristic = deviceCharacteristics.get(uuid.toLowerCase());
+        BluetoothGattCharacteristic characteristic = findCharacteristic(deviceAddress, uuid);
         if(characteristic ==  null)
             return false;
 
@@ -954,11 +3339,59 @@ public class GodotBLE extends GodotPlugin
 
     public boolean isIndicatable(String deviceAddress, String uuid)
     {
-        Map<String, BluetoothGattCharacteristic> deviceCharacteristics = characteristicMap.get(deviceAddress);
-        if(deviceCharacteristics == null) return false;
-        BluetoothGattCharacteristic characteristic = deviceCharacteristics.get(uuid.toLowerCase());
+        BluetoothGattCharacteristic characteristic = findCharacteristic(deviceAddress, uuid);
         if (characteristic == null) return false;
 
         return (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0;
     }
-}
\ No newline at end of file
+
+
+    /**
+     * Sets the minimum priority of the messages written to the log. The messages below it are not
+     * even built, so the log costs nothing when it is disabled.
+     * @param level 2 (verbose), 3 (debug), 4 (info), 5 (warning, default), 6 (error), 7 (assert)
+     *              or 8 to disable the log
+     */
+
+    public void setLogLevel(int level) {
+        PluginLog.setLevel(level);
+    }
+
+
+    /**
+     * Starts recording the BLE events (GATT operations and callbacks, scan results) in a ring of
+     * binary records, without going through the log. The ring can be saved with dumpTrace.
+     * @param capacity number of events kept, the oldest are overwritten. 0 disables the trace
+     */
+
+    public void enableTrace(int capacity) {
+        traceBuffer = capacity > 0 ? new TraceBuffer(capacity) : null;
+    }
+
+
+    /**
+     * Writes the events in the trace ring to a text file
+     * @param path path of the file, overwritten if it exists
+     * @return True on success, False if the trace is disabled or the file cannot be written
+     */
+
+    public boolean dumpTrace(String path)
+    {
+        TraceBuffer trace = traceBuffer;
+        if (trace == null)
+            return false;
+
+        boolean dumped = trace.dump(path);
+        if (!dumped && PluginLog.isLoggable(Log.ERROR))
+            Log.e("TraceBuffer", "Impossible to write ".concat(path));
+        return dumped;
+    }
+
+
+    private void trace(int event, String deviceAddress, int handle, int status)
+    {
+        TraceBuffer trace = traceBuffer;
+        if (trace != null)
+            trace.record(event, deviceAddress, handle, status);
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.bleframework;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class keeps the devices the app has connected to, saved in the shared preferences so that
+ * they survive the restart of the app. For each device the address and the name are saved: in
+ * this way a known device can be connected without scanning for it.
+ */
+
+class KnownDeviceRegistry
+{
+    private static final String PREFERENCES_NAME = "BLEPluginKnownDevices";
+    private static final String KEY_ADDRESSES = "addresses";
+    private static final String KEY_AUTO_CONNECT = "auto_connect";
+    private static final String PREFIX_NAME = "name_";
+
+    private final SharedPreferences preferences;
+
+
+    KnownDeviceRegistry(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+
+    /**
+     * Saves (or updates) the given device
+     */
+
+    synchronized void remember(BluetoothDevice device)
+    {
+        String address = device.getAddress();
+        String name = device.getName();
+
+        Set<String> addresses = new HashSet<>(preferences.getStringSet(KEY_ADDRESSES, new HashSet<String>()));
+        addresses.add(address);
+
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putStringSet(KEY_ADDRESSES, addresses);
+        if (name != null)
+            editor.putString(PREFIX_NAME.concat(address), name);
+        editor.apply();
+    }
+
+
+    synchronized void forget(String address)
+    {
+        Set<String> addresses = new HashSet<>(preferences.getStringSet(KEY_ADDRESSES, new HashSet<String>()));
+        addresses.remove(address);
+
+        preferences.edit()
+                .putStringSet(KEY_ADDRESSES, addresses)
+                .remove(PREFIX_NAME.concat(address))
+                .apply();
+    }
+
+
+    /**
+     * Removes all the devices. The auto connection option is kept.
+     */
+
+    synchronized void clear()
+    {
+        boolean autoConnect = isAutoConnect();
+        preferences.edit().clear().putBoolean(KEY_AUTO_CONNECT, autoConnect).apply();
+    }
+
+
+    synchronized List<String> getAddresses() {
+        return new ArrayList<>(preferences.getStringSet(KEY_ADDRESSES, new HashSet<String>()));
+    }
+
+
+    /**
+     * @return The name of the device, an empty string if it is unknown
+     */
+
+    synchronized String getName(String address) {
+        return preferences.getString(PREFIX_NAME.concat(address), "");
+    }
+
+
+    /**
+     * @return The address of the known device with the given name, null if there is none
+     */
+
+    synchronized String findAddressByName(String name)
+    {
+        for (String address : getAddresses())
+            if (name.equals(getName(address)))
+                return address;
+        return null;
+    }
+
+
+    synchronized boolean isAutoConnect() {
+        return preferences.getBoolean(KEY_AUTO_CONNECT, false);
+    }
+
+
+    synchronized void setAutoConnect(boolean autoConnect) {
+        preferences.edit().putBoolean(KEY_AUTO_CONNECT, autoConnect).apply();
+    }
+}
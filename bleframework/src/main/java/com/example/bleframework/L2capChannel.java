@@ -0,0 +1,247 @@
+package com.example.bleframework;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class represents an L2CAP connection-oriented channel opened towards the PSM of a
+ * peripheral. The incoming data is read on a background thread and delivered in batches, while
+ * the outgoing data is buffered and sent by a second thread. The bytes waiting to be sent are
+ * limited: when the limit is reached the writes are refused until the buffer has been drained.
+ */
+
+@RequiresApi(api = Build.VERSION_CODES.Q)
+class L2capChannel
+{
+    // Receives the events of the channel. The methods are invoked from the channel threads
+    interface Listener
+    {
+        void onChannelOpened(L2capChannel channel);
+        void onDataReceived(L2capChannel channel, byte[] data);
+        void onWriteReady(L2capChannel channel);
+        void onChannelClosed(L2capChannel channel, String error);
+    }
+
+    private final BluetoothDevice device;
+    private final int psm;
+    private final boolean secure;
+    private final Listener listener;
+
+    // Maximum number of bytes delivered with a single onDataReceived
+    private final int batchBytes;
+    // Maximum number of bytes waiting to be sent
+    private final int maxQueuedBytes;
+
+    private volatile BluetoothSocket socket;
+    private volatile boolean closed = false;
+    private Thread writerThread;
+
+    // Outgoing data and its size in bytes
+    private final LinkedBlockingQueue<byte[]> writeQueue = new LinkedBlockingQueue<byte[]>();
+    private final AtomicInteger queuedBytes = new AtomicInteger(0);
+    // True if a write has been refused, so that onWriteReady is called once there is room again
+    private final AtomicBoolean writeBlocked = new AtomicBoolean(false);
+
+
+    L2capChannel(BluetoothDevice device, int psm, boolean secure, int batchBytes, int maxQueuedBytes, Listener listener)
+    {
+        this.device = device;
+        this.psm = psm;
+        this.secure = secure;
+        this.batchBytes = batchBytes;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.listener = listener;
+    }
+
+
+    String getDeviceAddress() {
+        return device.getAddress();
+    }
+
+
+    int getPsm() {
+        return psm;
+    }
+
+
+    /**
+     * Connects the channel in background. The result is notified to the listener.
+     */
+
+    void open()
+    {
+        Thread readerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    socket = secure ? device.createL2capChannel(psm) : device.createInsecureL2capChannel(psm);
+                    socket.connect();
+                } catch (IOException | SecurityException e) {
+                    fail(e.getMessage() != null ? e.getMessage() : "L2CAP connection failed");
+                    return;
+                }
+
+                if (closed)
+                {
+                    closeSocket();
+                    return;
+                }
+
+                writerThread = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run() {
+                        writeLoop();
+                    }
+                }, "L2capWriter-".concat(device.getAddress()));
+                writerThread.start();
+
+                listener.onChannelOpened(L2capChannel.this);
+                readLoop();
+            }
+        }, "L2capReader-".concat(device.getAddress()));
+        readerThread.start();
+    }
+
+
+    /**
+     * Queues the given data to be sent.
+     * @return True if the data has been queued, False if the channel is closed or its buffer is full
+     */
+
+    boolean write(byte[] data)
+    {
+        if (closed)
+            return false;
+
+        if (queuedBytes.get() + data.length > maxQueuedBytes)
+        {
+            writeBlocked.set(true);
+            return false;
+        }
+
+        queuedBytes.addAndGet(data.length);
+        writeQueue.add(data);
+        return true;
+    }
+
+
+    /**
+     * Closes the channel. The listener is notified without error.
+     */
+
+    void close()
+    {
+        if (closed)
+            return;
+        closed = true;
+
+        closeSocket();
+        if (writerThread != null)
+            writerThread.interrupt();
+    }
+
+
+    // Reads the incoming data and delivers everything that is already available as a single batch
+    private void readLoop()
+    {
+        try {
+            InputStream input = socket.getInputStream();
+            byte[] buffer = new byte[Math.max(socket.getMaxReceivePacketSize(), 512)];
+            ByteArrayOutputStream batch = new ByteArrayOutputStream(batchBytes);
+
+            while (!closed)
+            {
+                int read = input.read(buffer);
+                if (read < 0)
+                    break;
+                batch.write(buffer, 0, read);
+
+                while (batch.size() < batchBytes && input.available() > 0)
+                {
+                    read = input.read(buffer, 0, Math.min(buffer.length, input.available()));
+                    if (read <= 0)
+                        break;
+                    batch.write(buffer, 0, read);
+                }
+
+                listener.onDataReceived(this, batch.toByteArray());
+                batch.reset();
+            }
+        } catch (IOException e) {
+            if (!closed)
+            {
+                fail(e.getMessage() != null ? e.getMessage() : "L2CAP read failed");
+                return;
+            }
+        }
+
+        boolean closedByApp = closed;
+        close();
+        listener.onChannelClosed(this, closedByApp ? "" : "Channel closed by the peripheral");
+    }
+
+
+    // Sends the queued data, notifying the listener when a refused write can be retried
+    private void writeLoop()
+    {
+        try {
+            OutputStream output = socket.getOutputStream();
+            while (!closed)
+            {
+                byte[] data = writeQueue.take();
+                output.write(data);
+                output.flush();
+
+                int remaining = queuedBytes.addAndGet(-data.length);
+                if (remaining <= maxQueuedBytes / 2 && writeBlocked.compareAndSet(true, false))
+                    listener.onWriteReady(this);
+            }
+        } catch (InterruptedException e) {
+            // The channel has been closed
+        } catch (IOException e) {
+            if (!closed)
+                if (PluginLog.isLoggable(Log.ERROR))
+                    Log.e("L2capChannel", "Write failed for ".concat(device.getAddress()).concat(": ").concat(String.valueOf(e.getMessage())));
+            // The reader thread notices the broken socket and notifies the listener
+            closeSocket();
+        }
+    }
+
+
+    private void fail(String error)
+    {
+        if (PluginLog.isLoggable(Log.ERROR))
+            Log.e("L2capChannel", "Channel error for ".concat(device.getAddress()).concat(": ").concat(error));
+        close();
+        listener.onChannelClosed(this, error);
+    }
+
+
+    private void closeSocket()
+    {
+        BluetoothSocket s = socket;
+        if (s == null)
+            return;
+        try {
+            s.close();
+        } catch (IOException e) {
+            if (PluginLog.isLoggable(Log.WARN))
+                Log.w("L2capChannel", "Error closing the socket of ".concat(device.getAddress()));
+        }
+    }
+}
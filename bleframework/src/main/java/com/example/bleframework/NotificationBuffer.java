@@ -0,0 +1,128 @@
+package com.example.bleframework;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class holds the notifications received from the peripherals until they are delivered to
+ * Godot. Every device has a buffer with a fixed capacity: when it is full a notification is
+ * dropped according to the overflow policy, and the number of dropped notifications is reported
+ * with the next delivery.
+ */
+
+class NotificationBuffer
+{
+    // Overflow policies
+    static final int DROP_OLDEST = 0;  // the oldest notification of the device is dropped
+    static final int DROP_NEWEST = 1;  // the notification just received is dropped
+    static final int KEEP_LATEST = 2;  // the oldest notification of the same characteristic is dropped
+
+    static class Notification
+    {
+        String deviceAddress;
+        String uuid;
+        byte[] value;
+        // Position among all the events sent to Godot, see GodotBLE.dispatchSignal
+        long sequence;
+    }
+
+    private class DeviceBuffer
+    {
+        ArrayDeque<Notification> notifications = new ArrayDeque<Notification>();
+        int dropped = 0;
+    }
+
+    private final Map<String, DeviceBuffer> devices = new LinkedHashMap<>();
+    private int capacity;
+    private int policy;
+
+
+    NotificationBuffer(int capacity, int policy)
+    {
+        configure(capacity, policy);
+    }
+
+
+    /**
+     * Changes capacity and overflow policy. The notifications already buffered are kept.
+     */
+
+    synchronized void configure(int capacity, int policy)
+    {
+        this.capacity = Math.max(1, capacity);
+        this.policy = (policy == DROP_NEWEST || policy == KEEP_LATEST) ? policy : DROP_OLDEST;
+    }
+
+
+    /**
+     * Adds a notification to the buffer of its device, applying the overflow policy if it is full
+     * @param sequence order of arrival of the notification among all the events
+     */
+
+    synchronized void offer(String deviceAddress, String uuid, byte[] value, long sequence)
+    {
+        DeviceBuffer buffer = devices.get(deviceAddress);
+        if (buffer == null)
+        {
+            buffer = new DeviceBuffer();
+            devices.put(deviceAddress, buffer);
+        }
+
+        if (buffer.notifications.size() >= capacity)
+        {
+            buffer.dropped++;
+            if (policy == DROP_NEWEST)
+                return;
+
+            if (policy != KEEP_LATEST || !removeOldest(buffer, uuid))
+                buffer.notifications.poll();
+        }
+
+        Notification notification = new Notification();
+        notification.deviceAddress = deviceAddress;
+        notification.uuid = uuid;
+        notification.value = value;
+        notification.sequence = sequence;
+        buffer.notifications.add(notification);
+    }
+
+
+    /**
+     * Moves all the buffered notifications to the given list, in order of arrival for each device.
+     * The notifications of different devices can be sorted by their sequence.
+     * @param dropped filled with <device address, notifications dropped since the last drain>
+     */
+
+    synchronized void drainTo(List<Notification> notifications, Map<String, Integer> dropped)
+    {
+        Iterator<Map.Entry<String, DeviceBuffer>> it = devices.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<String, DeviceBuffer> entry = it.next();
+            DeviceBuffer buffer = entry.getValue();
+            notifications.addAll(buffer.notifications);
+            if (buffer.dropped > 0)
+                dropped.put(entry.getKey(), buffer.dropped);
+            it.remove();
+        }
+    }
+
+
+    // Removes the oldest notification of the given characteristic
+    private boolean removeOldest(DeviceBuffer buffer, String uuid)
+    {
+        Iterator<Notification> it = buffer.notifications.iterator();
+        while (it.hasNext())
+        {
+            if (it.next().uuid.equals(uuid))
+            {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+}
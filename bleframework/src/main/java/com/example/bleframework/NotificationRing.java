@@ -0,0 +1,186 @@
+package com.example.bleframework;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class is a ring buffer of notification records, preallocated as a direct ByteBuffer.
+ * The GATT callbacks write the records and Godot reads all of them at once, usually once per
+ * frame: the read is a single copy of the used part of the ring, without any object created for
+ * each notification.
+ *
+ * Every record is made of a 16 bit channel id, a 16 bit payload length (little endian) and the
+ * payload, padded to a multiple of 4 bytes. The channel id identifies the pair
+ * (device address, characteristic UUID), see getChannels(). A record never wraps around the end
+ * of the ring: if it does not fit, the remaining bytes are skipped and marked with WRAP_CHANNEL.
+ *
+ * There is a single consumer. The producers are serialized by a lock that the consumer never takes.
+ */
+
+class NotificationRing
+{
+    static final int WRAP_CHANNEL = 0xFFFF;
+    private static final int HEADER_SIZE = 4;
+
+    private final int capacity;
+    private final ByteBuffer writeView;
+    private final ByteBuffer readView;
+
+    // Total number of bytes written and read since the creation of the ring
+    private volatile long head = 0;
+    private volatile long tail = 0;
+
+    // Records dropped because the ring was full
+    private final AtomicInteger dropped = new AtomicInteger(0);
+
+    // Channel ids, assigned the first time a characteristic of a device sends a notification
+    private final Map<String, Map<String, Integer>> channelIds = new HashMap<>();
+    private final ArrayList<String> channels = new ArrayList<String>();
+
+    // Offsets of the records of the last read, reused to avoid allocations
+    private int[] offsets = new int[64];
+
+
+    NotificationRing(int capacity)
+    {
+        this.capacity = Math.max(64, capacity & ~3);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(this.capacity);
+        writeView = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        readView = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+
+    /**
+     * Appends a record to the ring.
+     * @return True if the record has been written, False if the ring is full
+     */
+
+    synchronized boolean write(String deviceAddress, String uuid, byte[] value)
+    {
+        int channel = getChannel(deviceAddress, uuid);
+        int length = Math.min(value.length, 0xFFFF);
+        int recordSize = (HEADER_SIZE + length + 3) & ~3;
+
+        long h = head;
+        int offset = (int) (h % capacity);
+        int contiguous = capacity - offset;
+        int needed = contiguous < recordSize ? recordSize + contiguous : recordSize;
+        if (channel < 0 || recordSize > capacity || capacity - (h - tail) < needed)
+        {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        if (contiguous < recordSize)
+        {
+            writeView.putShort(offset, (short) WRAP_CHANNEL);
+            h += contiguous;
+            offset = 0;
+        }
+
+        writeView.putShort(offset, (short) channel);
+        writeView.putShort(offset + 2, (short) length);
+        writeView.position(offset + HEADER_SIZE);
+        writeView.put(value, 0, length);
+
+        // Publishes the record to the consumer
+        head = h + recordSize;
+        return true;
+    }
+
+
+    /**
+     * Reads all the records written since the last read.
+     * @param data receives the bytes of the records, including the wrap padding
+     * @return The offsets in data of the records, one element for each record
+     */
+
+    int[] read(byte[][] data)
+    {
+        long t = tail;
+        long h = head;
+        int size = (int) (h - t);
+        byte[] bytes = new byte[size];
+
+        int offset = (int) (t % capacity);
+        int first = Math.min(size, capacity - offset);
+        readView.position(offset);
+        readView.get(bytes, 0, first);
+        if (first < size)
+        {
+            readView.position(0);
+            readView.get(bytes, first, size - first);
+        }
+        tail = h;
+
+        // Finds the records, skipping the padding before the end of the ring
+        int count = 0;
+        int position = 0;
+        long ringPosition = t;
+        while (position < size)
+        {
+            int channel = (bytes[position] & 0xFF) | ((bytes[position + 1] & 0xFF) << 8);
+            int skip;
+            if (channel == WRAP_CHANNEL)
+                skip = capacity - (int) (ringPosition % capacity);
+            else
+            {
+                if (count == offsets.length)
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                offsets[count++] = position;
+                int length = (bytes[position + 2] & 0xFF) | ((bytes[position + 3] & 0xFF) << 8);
+                skip = (HEADER_SIZE + length + 3) & ~3;
+            }
+            position += skip;
+            ringPosition += skip;
+        }
+
+        data[0] = bytes;
+        return Arrays.copyOf(offsets, count);
+    }
+
+
+    /**
+     * @return The number of records dropped since the last call
+     */
+
+    int takeDropped() {
+        return dropped.getAndSet(0);
+    }
+
+
+    /**
+     * @return The pairs "device address/characteristic UUID", the index is the channel id
+     */
+
+    synchronized String[] getChannels() {
+        return channels.toArray(new String[0]);
+    }
+
+
+    private int getChannel(String deviceAddress, String uuid)
+    {
+        Map<String, Integer> deviceChannels = channelIds.get(deviceAddress);
+        if (deviceChannels == null)
+        {
+            deviceChannels = new HashMap<>();
+            channelIds.put(deviceAddress, deviceChannels);
+        }
+
+        Integer channel = deviceChannels.get(uuid);
+        if (channel == null)
+        {
+            if (channels.size() >= WRAP_CHANNEL)
+                return -1;
+            channel = channels.size();
+            deviceChannels.put(uuid, channel);
+            channels.add(deviceAddress.concat("/").concat(uuid));
+        }
+        return channel;
+    }
+}
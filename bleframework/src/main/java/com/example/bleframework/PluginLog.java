@@ -0,0 +1,35 @@
+package com.example.bleframework;
+
+import android.util.Log;
+
+/**
+ * This class holds the log level of the plugin, set from Godot. Every call to Log is guarded by
+ * isLoggable(), so that the messages below the level are not even built.
+ */
+
+class PluginLog
+{
+    // Level that disables all the messages
+    static final int NONE = Log.ASSERT + 1;
+
+    private static volatile int level = Log.WARN;
+
+
+    static boolean isLoggable(int priority) {
+        return priority >= level;
+    }
+
+
+    /**
+     * @param level one of the priorities of android.util.Log (VERBOSE = 2 ... ASSERT = 7), NONE to disable the log
+     */
+
+    static void setLevel(int level) {
+        PluginLog.level = Math.max(Log.VERBOSE, Math.min(NONE, level));
+    }
+
+
+    static int getLevel() {
+        return level;
+    }
+}
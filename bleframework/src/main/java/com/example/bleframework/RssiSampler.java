@@ -0,0 +1,93 @@
+package com.example.bleframework;
+
+/**
+ * This class smooths the RSSI samples of a device and decides when the smoothed value has to be
+ * notified: only when it moves away from the last notified value by at least the threshold.
+ * The smoothing is either an exponential moving average or a one-dimensional Kalman filter.
+ */
+
+class RssiSampler
+{
+    // Smoothing modes
+    static final int EMA = 0;
+    static final int KALMAN = 1;
+
+    // Variance of the real signal between two samples, used by the Kalman filter
+    private static final float PROCESS_NOISE = 0.05f;
+
+    final String deviceAddress;
+    final int intervalMs;
+    private final float thresholdDb;
+    private final int mode;
+    // Weight of the new sample for the EMA, variance of the measurements for the Kalman filter
+    private final float parameter;
+
+    private boolean initialized = false;
+    private float estimate;
+    private float errorCovariance = 1f;
+    private float lastNotified;
+    private long lastSampleTime = 0;
+
+    // Task that periodically reads the RSSI of the connected device
+    Runnable readTask;
+    // True if a read is waiting in the queue of the device, so that reads do not pile up
+    volatile boolean readQueued = false;
+
+
+    RssiSampler(String deviceAddress, int intervalMs, float thresholdDb, int mode, float parameter)
+    {
+        this.deviceAddress = deviceAddress;
+        this.intervalMs = Math.max(50, intervalMs);
+        this.thresholdDb = Math.max(0f, thresholdDb);
+        this.mode = mode;
+        this.parameter = parameter;
+    }
+
+
+    /**
+     * @return True if enough time has passed since the last sample accepted
+     */
+
+    boolean isSampleDue(long now) {
+        return now - lastSampleTime >= intervalMs;
+    }
+
+
+    /**
+     * Adds a sample to the filter
+     * @return True if the smoothed value has to be notified, False otherwise
+     */
+
+    synchronized boolean add(int rssi, long now)
+    {
+        lastSampleTime = now;
+        if (!initialized)
+        {
+            estimate = rssi;
+            lastNotified = rssi;
+            initialized = true;
+            return true;
+        }
+
+        if (mode == KALMAN)
+        {
+            float predictedCovariance = errorCovariance + PROCESS_NOISE;
+            float gain = predictedCovariance / (predictedCovariance + parameter);
+            estimate += gain * (rssi - estimate);
+            errorCovariance = (1 - gain) * predictedCovariance;
+        }
+        else
+            estimate += parameter * (rssi - estimate);
+
+        if (Math.abs(estimate - lastNotified) < thresholdDb)
+            return false;
+
+        lastNotified = estimate;
+        return true;
+    }
+
+
+    synchronized int getSmoothedRssi() {
+        return Math.round(estimate);
+    }
+}
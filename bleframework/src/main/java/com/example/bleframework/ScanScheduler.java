@@ -0,0 +1,124 @@
+package com.example.bleframework;
+
+/**
+ * This class decides when the radio scans. A scheduled scan is made of windows: the scan runs for
+ * windowMs, then it is stopped until the next window, intervalMs after the start of the previous
+ * one. When a window finds no new device the interval is doubled, up to maxIntervalMs; it goes
+ * back to intervalMs as soon as a window finds something. The scan ends after maxMatches new
+ * devices or after timeoutMs.
+ *
+ * Android ignores the scans started more than 5 times in 30 seconds by the same app, without
+ * reporting any error, so every start (scheduled or not) is recorded and the next one is delayed
+ * if needed.
+ */
+
+class ScanScheduler
+{
+    private static final int MAX_STARTS = 5;
+    private static final long STARTS_PERIOD_MS = 30000;
+    // Margin for the clock of the platform, that counts the starts on its own
+    private static final long STARTS_MARGIN_MS = 100;
+
+    // Times of the last starts of the scan, oldest first
+    private final long[] starts = new long[MAX_STARTS];
+    private int startCount = 0;
+
+    // Options of the scheduled scan in progress
+    int windowMs;
+    private int intervalMs;
+    private int maxIntervalMs;
+    private int maxMatches;
+    int timeoutMs;
+
+    private boolean active = false;
+    private int currentIntervalMs;
+    private int matches;
+    private int windowMatches;
+
+
+    /**
+     * Starts a new scheduled scan. maxMatches and timeoutMs are ignored if not positive.
+     */
+
+    synchronized void start(int windowMs, int intervalMs, int maxIntervalMs, int maxMatches, int timeoutMs)
+    {
+        this.windowMs = Math.max(100, windowMs);
+        this.intervalMs = Math.max(this.windowMs, intervalMs);
+        this.maxIntervalMs = Math.max(this.intervalMs, maxIntervalMs);
+        this.maxMatches = maxMatches;
+        this.timeoutMs = timeoutMs;
+
+        active = true;
+        currentIntervalMs = this.intervalMs;
+        matches = 0;
+        windowMatches = 0;
+    }
+
+
+    synchronized void stop() {
+        active = false;
+    }
+
+
+    synchronized boolean isActive() {
+        return active;
+    }
+
+
+    /**
+     * Counts a device found for the first time
+     * @return True if the scheduled scan has found all the devices requested
+     */
+
+    synchronized boolean addMatch()
+    {
+        matches++;
+        windowMatches++;
+        return maxMatches > 0 && matches >= maxMatches;
+    }
+
+
+    synchronized int getMatches() {
+        return matches;
+    }
+
+
+    /**
+     * Ends a window, applying the back-off if it found nothing new
+     * @return The delay from the end of this window to the start of the next one
+     */
+
+    synchronized long endWindow()
+    {
+        if (windowMatches == 0)
+            currentIntervalMs = (int) Math.min((long) currentIntervalMs * 2, maxIntervalMs);
+        else
+            currentIntervalMs = intervalMs;
+        windowMatches = 0;
+
+        return currentIntervalMs - windowMs;
+    }
+
+
+    /**
+     * @return The delay before the scan can be started without exceeding the limit of the platform
+     */
+
+    synchronized long getStartDelay(long now)
+    {
+        if (startCount < MAX_STARTS)
+            return 0;
+        return Math.max(0, starts[0] + STARTS_PERIOD_MS + STARTS_MARGIN_MS - now);
+    }
+
+
+    synchronized void recordStart(long now)
+    {
+        if (startCount == MAX_STARTS)
+        {
+            System.arraycopy(starts, 1, starts, 0, MAX_STARTS - 1);
+            startCount--;
+        }
+        starts[startCount++] = now;
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.bleframework;
+
+import android.os.SystemClock;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is a ring of fixed-size binary records of the BLE events, used to trace what the
+ * plugin does without the cost of the log. Recording an event takes no lock and allocates nothing:
+ * each producer reserves a slot with an atomic counter and fills its four longs. When the ring is
+ * full the oldest records are overwritten. The records are converted to text only by dump().
+ *
+ * Every record is made of:
+ * - the timestamp (SystemClock.elapsedRealtimeNanos())
+ * - the device address, packed in the 48 low bits
+ * - the event type (16 bits), the status (16 bits) and the handle (32 bits): the instance id of
+ *   the characteristic, or a value depending on the event (new state, MTU, RSSI)
+ * - the sequence number of the record, written last: a record being overwritten while it is
+ *   dumped does not match its slot anymore and it is skipped
+ */
+
+class TraceBuffer
+{
+    // Event types
+    static final int CONNECTION_STATE = 1;
+    static final int SERVICES_DISCOVERED = 2;
+    static final int MTU_CHANGED = 3;
+    static final int WRITE_REQUEST = 4;
+    static final int WRITE = 5;
+    static final int READ_REQUEST = 6;
+    static final int READ = 7;
+    static final int DESCRIPTOR_WRITE_REQUEST = 8;
+    static final int DESCRIPTOR_WRITE = 9;
+    static final int RELIABLE_WRITE = 10;
+    static final int NOTIFICATION = 11;
+    static final int RSSI = 12;
+    static final int SCAN_RESULT = 13;
+
+    private static final String[] EVENT_NAMES = {
+            "", "connection_state", "services_discovered", "mtu_changed", "write_request", "write",
+            "read_request", "read", "descriptor_write_request", "descriptor_write", "reliable_write",
+            "notification", "rssi", "scan_result"
+    };
+
+    private static final int RECORD_SIZE = 4;
+
+    private final int capacity;
+    private final AtomicLongArray records;
+    private final AtomicLong next = new AtomicLong(0);
+
+
+    TraceBuffer(int capacity)
+    {
+        this.capacity = Math.max(16, capacity);
+        records = new AtomicLongArray(this.capacity * RECORD_SIZE);
+    }
+
+
+    void record(int event, String deviceAddress, int handle, int status)
+    {
+        long sequence = next.getAndIncrement();
+        int slot = (int) (sequence % capacity) * RECORD_SIZE;
+
+        // Invalidates the slot while it is written
+        records.lazySet(slot + 3, -1);
+        records.lazySet(slot, now());
+        records.lazySet(slot + 1, packAddress(deviceAddress));
+        records.lazySet(slot + 2, ((long) (event & 0xFFFF) << 48) | ((long) (status & 0xFFFF) << 32) | (handle & 0xFFFFFFFFL));
+        records.set(slot + 3, sequence);
+    }
+
+
+    /**
+     * Writes the records in the ring to a text file, one line for each record, from the oldest:
+     * "timestamp_ns event device handle status"
+     * @return True if the file has been written, False otherwise
+     */
+
+    boolean dump(String path)
+    {
+        long end = next.get();
+        long start = Math.max(0, end - capacity);
+
+        try (Writer writer = new FileWriter(path)) {
+            writer.write("timestamp_ns event device handle status\n");
+            for (long sequence = start; sequence < end; sequence++)
+            {
+                int slot = (int) (sequence % capacity) * RECORD_SIZE;
+                if (records.get(slot + 3) != sequence)
+                    continue;
+
+                long timestamp = records.get(slot);
+                long address = records.get(slot + 1);
+                long info = records.get(slot + 2);
+                if (records.get(slot + 3) != sequence)
+                    continue;
+
+                int event = (int) (info >>> 48);
+                writer.write(String.format(Locale.US, "%d %s %s %d %d\n",
+                        timestamp,
+                        event < EVENT_NAMES.length ? EVENT_NAMES[event] : String.valueOf(event),
+                        unpackAddress(address),
+                        (int) info,
+                        (short) (info >>> 32)));
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+
+    // Timestamp of the records
+    long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+
+    // Packs an address "AA:BB:CC:DD:EE:FF" in a long without allocations
+    private static long packAddress(String deviceAddress)
+    {
+        long packed = 0;
+        if (deviceAddress == null)
+            return packed;
+
+        for (int i = 0; i < deviceAddress.length(); i++)
+        {
+            int digit = Character.digit(deviceAddress.charAt(i), 16);
+            if (digit >= 0)
+                packed = (packed << 4) | digit;
+        }
+        return packed & 0xFFFFFFFFFFFFL;
+    }
+
+
+    private static String unpackAddress(long packed)
+    {
+        StringBuilder address = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8)
+        {
+            address.append(String.format(Locale.US, "%02X", (packed >>> shift) & 0xFF));
+            if (shift > 0)
+                address.append(':');
+        }
+        return address.toString();
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.bleframework;
+
+import org.junit.Test;
+
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the state of the bulk transfers.
+ */
+public class BulkTransferTest {
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) i;
+        return data;
+    }
+
+    // Mimics GodotBLE sending a chunk
+    private static void send(BulkTransfer transfer, int length) {
+        if (transfer.isNextChunkCheckpoint(length))
+            transfer.chunksSinceCheckpoint = 0;
+        else
+            transfer.chunksSinceCheckpoint++;
+        transfer.sentOffset += length;
+    }
+
+    @Test
+    public void crc_isTheCrc32OfTheData() {
+        byte[] data = data(100);
+        CRC32 crc32 = new CRC32();
+        crc32.update(data);
+
+        BulkTransfer transfer = new BulkTransfer("A", "uuid", data, false, 4);
+        assertEquals((int) crc32.getValue(), transfer.crc);
+    }
+
+    @Test
+    public void isNextChunkCheckpoint_oneChunkEveryWindow() {
+        BulkTransfer transfer = new BulkTransfer("A", "uuid", data(200), false, 3);
+
+        assertFalse(transfer.isNextChunkCheckpoint(20));
+        send(transfer, 20);
+        assertFalse(transfer.isNextChunkCheckpoint(20));
+        send(transfer, 20);
+        assertTrue(transfer.isNextChunkCheckpoint(20));
+        send(transfer, 20);
+
+        // The window starts again after the checkpoint
+        assertFalse(transfer.isNextChunkCheckpoint(20));
+    }
+
+    @Test
+    public void isNextChunkCheckpoint_lastChunkIsAlwaysACheckpoint() {
+        BulkTransfer transfer = new BulkTransfer("A", "uuid", data(50), false, 10);
+        send(transfer, 20);
+        send(transfer, 20);
+        assertTrue(transfer.isNextChunkCheckpoint(10));
+    }
+
+    @Test
+    public void isNextChunkCheckpoint_everyChunkWithResponse() {
+        BulkTransfer transfer = new BulkTransfer("A", "uuid", data(100), true, 10);
+        assertTrue(transfer.isNextChunkCheckpoint(20));
+        send(transfer, 20);
+        assertTrue(transfer.isNextChunkCheckpoint(20));
+    }
+
+    @Test
+    public void window_isAtLeastOne() {
+        BulkTransfer transfer = new BulkTransfer("A", "uuid", data(100), false, 0);
+        assertEquals(1, transfer.window);
+        assertTrue(transfer.isNextChunkCheckpoint(20));
+    }
+
+    @Test
+    public void rewind_movesBackToTheLastCheckpoint() {
+        BulkTransfer transfer = new BulkTransfer("A", "uuid", data(200), false, 3);
+        send(transfer, 20);
+        send(transfer, 20);
+        send(transfer, 20);
+        transfer.ackedOffset = 60;
+        send(transfer, 20);
+        send(transfer, 20);
+
+        transfer.rewind();
+        assertEquals(60, transfer.sentOffset);
+        assertEquals(0, transfer.chunksSinceCheckpoint);
+        assertTrue(transfer.hasDataToSend());
+        assertFalse(transfer.isComplete());
+    }
+
+    @Test
+    public void getChunk_startsWithTheOffset() {
+        BulkTransfer transfer = new BulkTransfer("A", "uuid", data(600), false, 4);
+        byte[] chunk = transfer.getChunk(300, 3);
+
+        // 300 = 0x012C, little endian
+        assertArrayEquals(new byte[]{0x2C, 0x01, 0, 0, (byte) 300, (byte) 301, (byte) 302}, chunk);
+    }
+
+    @Test
+    public void resume_restartsFromTheLastCheckpointOnlyOnce() {
+        BulkTransfer transfer = new BulkTransfer("A", "uuid", data(100), false, 2);
+        send(transfer, 20);
+        send(transfer, 20);
+        transfer.ackedOffset = 40;
+        send(transfer, 20);
+
+        assertFalse(transfer.resume());
+        transfer.pause();
+        assertTrue(transfer.isPaused());
+        assertEquals(40, transfer.sentOffset);
+
+        assertTrue(transfer.resume());
+        assertFalse(transfer.isPaused());
+        assertFalse(transfer.resume());
+    }
+
+    @Test
+    public void isComplete_onlyWhenAllTheDataIsAcknowledged() {
+        BulkTransfer transfer = new BulkTransfer("A", "uuid", data(40), false, 4);
+        send(transfer, 20);
+        send(transfer, 20);
+        assertFalse(transfer.hasDataToSend());
+        assertFalse(transfer.isComplete());
+
+        transfer.ackedOffset = 40;
+        assertTrue(transfer.isComplete());
+    }
+}
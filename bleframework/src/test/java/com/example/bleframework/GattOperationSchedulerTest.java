@@ -0,0 +1,190 @@
+package com.example.bleframework;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the scheduling of the GATT operations.
+ */
+public class GattOperationSchedulerTest {
+
+    // Records the order in which the operations are started
+    private final List<String> started = new ArrayList<>();
+
+    private class RecordingOperation extends GattOperationScheduler.Operation {
+        final String name;
+        final boolean result;
+
+        RecordingOperation(String name, boolean result) {
+            this.name = name;
+            this.result = result;
+        }
+
+        @Override
+        boolean execute() {
+            started.add(name);
+            return result;
+        }
+    }
+
+    @Test
+    public void enqueue_startsOneOperationPerDevice() {
+        GattOperationScheduler scheduler = new GattOperationScheduler();
+        RecordingOperation first = new RecordingOperation("a1", true);
+        RecordingOperation second = new RecordingOperation("a2", true);
+
+        assertTrue(scheduler.enqueue("A", first));
+        assertTrue(scheduler.enqueue("A", second));
+        assertEquals(1, started.size());
+        assertSame(first, scheduler.getInFlight("A"));
+
+        assertSame(first, scheduler.complete("A"));
+        assertSame(second, scheduler.getInFlight("A"));
+        assertSame(second, scheduler.complete("A"));
+        assertNull(scheduler.complete("A"));
+    }
+
+    @Test
+    public void enqueue_devicesProceedIndependently() {
+        GattOperationScheduler scheduler = new GattOperationScheduler();
+        scheduler.enqueue("A", new RecordingOperation("a1", true));
+        scheduler.enqueue("B", new RecordingOperation("b1", true));
+
+        assertEquals(2, started.size());
+        assertNotNull(scheduler.getInFlight("A"));
+        assertNotNull(scheduler.getInFlight("B"));
+    }
+
+    @Test
+    public void enqueue_failedOperationStartsTheNextOne() {
+        GattOperationScheduler scheduler = new GattOperationScheduler();
+        RecordingOperation blocked = new RecordingOperation("a1", true);
+        RecordingOperation failing = new RecordingOperation("a2", false);
+        RecordingOperation next = new RecordingOperation("a3", true);
+        scheduler.enqueue("A", blocked);
+        scheduler.enqueue("A", failing);
+        scheduler.enqueue("A", next);
+
+        scheduler.complete("A");
+        assertTrue(failing.failed);
+        assertSame(next, scheduler.getInFlight("A"));
+
+        // An operation that fails immediately is reported to the caller
+        GattOperationScheduler other = new GattOperationScheduler();
+        assertFalse(other.enqueue("B", new RecordingOperation("b1", false)));
+        assertNull(other.getInFlight("B"));
+    }
+
+    @Test
+    public void setMaxInFlight_sharesOperationsByWeight() {
+        GattOperationScheduler scheduler = new GattOperationScheduler();
+        scheduler.setMaxInFlight(1);
+        scheduler.setWeight("A", 3);
+        scheduler.setWeight("B", 1);
+        for (int i = 0; i < 12; i++) {
+            scheduler.enqueue("A", new RecordingOperation("A", true));
+            scheduler.enqueue("B", new RecordingOperation("B", true));
+        }
+
+        // Only one operation at a time across all the devices
+        assertEquals(1, started.size());
+
+        for (int i = 0; i < 8; i++) {
+            String device = started.get(started.size() - 1);
+            scheduler.complete(device);
+            assertEquals(i + 2, started.size());
+        }
+
+        // Smooth weighted round robin: exactly 3 to 1 in every cycle of 4 choices
+        int a = 0;
+        for (String name : started.subList(1, 9))
+            if (name.equals("A"))
+                a++;
+        assertEquals(6, a);
+    }
+
+    @Test
+    public void setMaxInFlight_raisingTheLimitStartsWaitingDevices() {
+        GattOperationScheduler scheduler = new GattOperationScheduler();
+        scheduler.setMaxInFlight(1);
+        scheduler.enqueue("A", new RecordingOperation("a1", true));
+        scheduler.enqueue("B", new RecordingOperation("b1", true));
+        assertEquals(1, started.size());
+
+        scheduler.setMaxInFlight(2);
+        assertEquals(2, started.size());
+    }
+
+    @Test
+    public void removeDevice_returnsItsOperationsAndFreesTheSlot() {
+        GattOperationScheduler scheduler = new GattOperationScheduler();
+        scheduler.setMaxInFlight(1);
+        RecordingOperation inFlight = new RecordingOperation("a1", true);
+        RecordingOperation pending = new RecordingOperation("a2", true);
+        RecordingOperation other = new RecordingOperation("b1", true);
+        scheduler.enqueue("A", inFlight);
+        scheduler.enqueue("A", pending);
+        scheduler.enqueue("B", other);
+
+        List<GattOperationScheduler.Operation> removed = scheduler.removeDevice("A");
+        assertEquals(2, removed.size());
+        assertSame(inFlight, removed.get(0));
+        assertSame(pending, removed.get(1));
+        assertSame(other, scheduler.getInFlight("B"));
+        assertNull(scheduler.getInFlight("A"));
+    }
+
+    @Test
+    public void enqueue_limitsTheOperationsInProgressByDefault() {
+        GattOperationScheduler scheduler = new GattOperationScheduler();
+        for (int i = 0; i < 6; i++)
+            scheduler.enqueue("D" + i, new RecordingOperation("d" + i, true));
+
+        assertEquals(GattOperationScheduler.DEFAULT_MAX_IN_FLIGHT, started.size());
+        scheduler.complete("D0");
+        assertEquals(GattOperationScheduler.DEFAULT_MAX_IN_FLIGHT + 1, started.size());
+    }
+
+    @Test
+    public void getTimedOutDevices_reportsOperationsWithoutAnswer() {
+        final long[] now = {0};
+        GattOperationScheduler scheduler = new GattOperationScheduler() {
+            @Override
+            long now() {
+                return now[0];
+            }
+        };
+        scheduler.setTimeout(1000);
+        scheduler.enqueue("A", new RecordingOperation("a1", true));
+        now[0] = 500;
+        scheduler.enqueue("B", new RecordingOperation("b1", true));
+        assertTrue(scheduler.getTimedOutDevices().isEmpty());
+
+        now[0] = 1200;
+        assertEquals(1, scheduler.getTimedOutDevices().size());
+        assertEquals("A", scheduler.getTimedOutDevices().get(0));
+
+        // The timeout starts again with the next operation
+        scheduler.enqueue("A", new RecordingOperation("a2", true));
+        scheduler.complete("A");
+        assertTrue(scheduler.getTimedOutDevices().isEmpty());
+    }
+
+    @Test
+    public void remove_onlyRemovesPendingOperations() {
+        GattOperationScheduler scheduler = new GattOperationScheduler();
+        RecordingOperation inFlight = new RecordingOperation("a1", true);
+        RecordingOperation pending = new RecordingOperation("a2", true);
+        scheduler.enqueue("A", inFlight);
+        scheduler.enqueue("A", pending);
+
+        assertFalse(scheduler.remove("A", inFlight));
+        assertTrue(scheduler.remove("A", pending));
+        assertSame(inFlight, scheduler.complete("A"));
+        assertNull(scheduler.getInFlight("A"));
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.bleframework;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the buffer of the notifications and of its overflow policies.
+ */
+public class NotificationBufferTest {
+
+    private long sequence = 0;
+
+    // Mimics GodotBLE buffering a notification
+    private void offer(NotificationBuffer buffer, String device, String uuid, int value) {
+        buffer.offer(device, uuid, new byte[]{(byte) value}, ++sequence);
+    }
+
+    private static List<Integer> values(List<NotificationBuffer.Notification> notifications, String device) {
+        List<Integer> values = new ArrayList<>();
+        for (NotificationBuffer.Notification n : notifications)
+            if (n.deviceAddress.equals(device))
+                values.add((int) n.value[0]);
+        return values;
+    }
+
+    @Test
+    public void drainTo_returnsTheNotificationsInOrder() {
+        NotificationBuffer buffer = new NotificationBuffer(8, NotificationBuffer.DROP_OLDEST);
+        offer(buffer, "A", "u1", 1);
+        offer(buffer, "A", "u2", 2);
+        offer(buffer, "A", "u1", 3);
+
+        List<NotificationBuffer.Notification> notifications = new ArrayList<>();
+        Map<String, Integer> dropped = new HashMap<>();
+        buffer.drainTo(notifications, dropped);
+
+        assertEquals(3, notifications.size());
+        assertEquals(1, (int) notifications.get(0).value[0]);
+        assertEquals("u2", notifications.get(1).uuid);
+        assertEquals(3, (int) notifications.get(2).value[0]);
+        assertTrue(dropped.isEmpty());
+
+        // The buffer is empty after the drain
+        notifications.clear();
+        buffer.drainTo(notifications, dropped);
+        assertTrue(notifications.isEmpty());
+    }
+
+    @Test
+    public void offer_dropOldestKeepsTheNewest() {
+        NotificationBuffer buffer = new NotificationBuffer(3, NotificationBuffer.DROP_OLDEST);
+        for (int i = 1; i <= 5; i++)
+            offer(buffer, "A", "u1", i);
+
+        List<NotificationBuffer.Notification> notifications = new ArrayList<>();
+        Map<String, Integer> dropped = new HashMap<>();
+        buffer.drainTo(notifications, dropped);
+
+        assertEquals(Arrays.asList(3, 4, 5), values(notifications, "A"));
+        assertEquals(2, (int) dropped.get("A"));
+    }
+
+    @Test
+    public void offer_dropNewestKeepsTheOldest() {
+        NotificationBuffer buffer = new NotificationBuffer(3, NotificationBuffer.DROP_NEWEST);
+        for (int i = 1; i <= 5; i++)
+            offer(buffer, "A", "u1", i);
+
+        List<NotificationBuffer.Notification> notifications = new ArrayList<>();
+        Map<String, Integer> dropped = new HashMap<>();
+        buffer.drainTo(notifications, dropped);
+
+        assertEquals(Arrays.asList(1, 2, 3), values(notifications, "A"));
+        assertEquals(2, (int) dropped.get("A"));
+    }
+
+    @Test
+    public void offer_keepLatestDropsTheOldestOfTheSameCharacteristic() {
+        NotificationBuffer buffer = new NotificationBuffer(3, NotificationBuffer.KEEP_LATEST);
+        offer(buffer, "A", "u1", 1);
+        offer(buffer, "A", "u2", 2);
+        offer(buffer, "A", "u1", 3);
+        offer(buffer, "A", "u2", 4);
+        // No notification of u3 to drop: the oldest one of the device is dropped
+        offer(buffer, "A", "u3", 5);
+
+        List<NotificationBuffer.Notification> notifications = new ArrayList<>();
+        Map<String, Integer> dropped = new HashMap<>();
+        buffer.drainTo(notifications, dropped);
+
+        assertEquals(Arrays.asList(3, 4, 5), values(notifications, "A"));
+        assertEquals("u1", notifications.get(0).uuid);
+        assertEquals("u2", notifications.get(1).uuid);
+        assertEquals(2, (int) dropped.get("A"));
+    }
+
+    @Test
+    public void offer_capacityIsPerDevice() {
+        NotificationBuffer buffer = new NotificationBuffer(2, NotificationBuffer.DROP_OLDEST);
+        offer(buffer, "A", "u1", 1);
+        offer(buffer, "A", "u1", 2);
+        offer(buffer, "B", "u1", 3);
+        offer(buffer, "B", "u1", 4);
+        offer(buffer, "A", "u1", 5);
+
+        List<NotificationBuffer.Notification> notifications = new ArrayList<>();
+        Map<String, Integer> dropped = new HashMap<>();
+        buffer.drainTo(notifications, dropped);
+
+        assertEquals(Arrays.asList(2, 5), values(notifications, "A"));
+        assertEquals(Arrays.asList(3, 4), values(notifications, "B"));
+        assertEquals(1, (int) dropped.get("A"));
+        assertFalse(dropped.containsKey("B"));
+    }
+
+    @Test
+    public void drainTo_sequencesGiveTheOrderAcrossDevices() {
+        NotificationBuffer buffer = new NotificationBuffer(8, NotificationBuffer.DROP_OLDEST);
+        offer(buffer, "B", "u1", 1);
+        offer(buffer, "A", "u1", 2);
+        offer(buffer, "B", "u1", 3);
+        offer(buffer, "A", "u1", 4);
+
+        List<NotificationBuffer.Notification> notifications = new ArrayList<>();
+        buffer.drainTo(notifications, new HashMap<String, Integer>());
+
+        Collections.sort(notifications, new Comparator<NotificationBuffer.Notification>() {
+            @Override
+            public int compare(NotificationBuffer.Notification a, NotificationBuffer.Notification b) {
+                return Long.compare(a.sequence, b.sequence);
+            }
+        });
+        for (int i = 0; i < 4; i++)
+            assertEquals(i + 1, (int) notifications.get(i).value[0]);
+    }
+
+    @Test
+    public void configure_keepsTheBufferedNotifications() {
+        NotificationBuffer buffer = new NotificationBuffer(4, NotificationBuffer.DROP_OLDEST);
+        offer(buffer, "A", "u1", 1);
+        offer(buffer, "A", "u1", 2);
+
+        // Invalid values fall back to capacity 1 and DROP_OLDEST
+        buffer.configure(0, 7);
+        offer(buffer, "A", "u1", 3);
+
+        List<NotificationBuffer.Notification> notifications = new ArrayList<>();
+        Map<String, Integer> dropped = new HashMap<>();
+        buffer.drainTo(notifications, dropped);
+
+        assertEquals(Arrays.asList(2, 3), values(notifications, "A"));
+        assertEquals(1, (int) dropped.get("A"));
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.bleframework;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the ring buffer of the notifications.
+ */
+public class NotificationRingTest {
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++)
+            value[i] = (byte) (seed + i);
+        return value;
+    }
+
+    private static byte[] recordPayload(byte[] data, int offset) {
+        int length = readShort(data, offset + 2);
+        return Arrays.copyOfRange(data, offset + 4, offset + 4 + length);
+    }
+
+    @Test
+    public void read_returnsRecordsPaddedToFourBytes() {
+        NotificationRing ring = new NotificationRing(256);
+        assertTrue(ring.write("A", "uuid1", payload(5, 1)));
+        assertTrue(ring.write("B", "uuid2", payload(3, 20)));
+        assertTrue(ring.write("A", "uuid1", payload(8, 40)));
+
+        byte[][] data = new byte[1][];
+        int[] offsets = ring.read(data);
+
+        // 4 + 5 -> 12, 4 + 3 -> 8, 4 + 8 -> 12
+        assertEquals(3, offsets.length);
+        assertEquals(0, offsets[0]);
+        assertEquals(12, offsets[1]);
+        assertEquals(20, offsets[2]);
+        assertEquals(32, data[0].length);
+
+        assertEquals(0, readShort(data[0], offsets[0]));
+        assertEquals(1, readShort(data[0], offsets[1]));
+        assertEquals(0, readShort(data[0], offsets[2]));
+        assertArrayEquals(payload(5, 1), recordPayload(data[0], offsets[0]));
+        assertArrayEquals(payload(3, 20), recordPayload(data[0], offsets[1]));
+        assertArrayEquals(payload(8, 40), recordPayload(data[0], offsets[2]));
+
+        assertArrayEquals(new String[]{"A/uuid1", "B/uuid2"}, ring.getChannels());
+    }
+
+    @Test
+    public void read_emptyRingReturnsNoRecords() {
+        NotificationRing ring = new NotificationRing(64);
+        byte[][] data = new byte[1][];
+        assertEquals(0, ring.read(data).length);
+        assertEquals(0, data[0].length);
+    }
+
+    @Test
+    public void write_recordNotFittingBeforeTheEndWrapsAround() {
+        NotificationRing ring = new NotificationRing(64);
+        byte[][] data = new byte[1][];
+        for (int i = 0; i < 3; i++)
+            assertTrue(ring.write("A", "uuid", payload(10, i)));
+        assertEquals(3, ring.read(data).length);
+
+        // 16 bytes left before the end: the 24 byte record is written at the start of the ring
+        assertTrue(ring.write("A", "uuid", payload(20, 100)));
+        int[] offsets = ring.read(data);
+
+        assertEquals(1, offsets.length);
+        assertEquals(40, data[0].length);
+        assertEquals(NotificationRing.WRAP_CHANNEL, readShort(data[0], 0));
+        assertEquals(16, offsets[0]);
+        assertArrayEquals(payload(20, 100), recordPayload(data[0], offsets[0]));
+
+        // The ring keeps working after the wrap
+        assertTrue(ring.write("A", "uuid", payload(4, 7)));
+        offsets = ring.read(data);
+        assertEquals(1, offsets.length);
+        assertArrayEquals(payload(4, 7), recordPayload(data[0], offsets[0]));
+    }
+
+    @Test
+    public void write_fullRingDropsAndCountsRecords() {
+        NotificationRing ring = new NotificationRing(64);
+        for (int i = 0; i < 4; i++)
+            assertTrue(ring.write("A", "uuid", payload(12, i)));
+        assertFalse(ring.write("A", "uuid", payload(12, 4)));
+        assertFalse(ring.write("A", "uuid", payload(1, 5)));
+
+        assertEquals(2, ring.takeDropped());
+        assertEquals(0, ring.takeDropped());
+
+        byte[][] data = new byte[1][];
+        assertEquals(4, ring.read(data).length);
+        assertTrue(ring.write("A", "uuid", payload(12, 6)));
+    }
+
+    @Test
+    public void write_recordLargerThanTheRingIsDropped() {
+        NotificationRing ring = new NotificationRing(64);
+        assertFalse(ring.write("A", "uuid", payload(61, 0)));
+        assertEquals(1, ring.takeDropped());
+    }
+}
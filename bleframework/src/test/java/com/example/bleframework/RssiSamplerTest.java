@@ -0,0 +1,93 @@
+package com.example.bleframework;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the smoothing of the RSSI and of the rule of its notification.
+ */
+public class RssiSamplerTest {
+
+    @Test
+    public void add_firstSampleIsNotified() {
+        RssiSampler sampler = new RssiSampler("A", 1000, 3, RssiSampler.EMA, 0.5f);
+        assertTrue(sampler.add(-60, 0));
+        assertEquals(-60, sampler.getSmoothedRssi());
+    }
+
+    @Test
+    public void add_emaWeighsTheNewSample() {
+        RssiSampler sampler = new RssiSampler("A", 1000, 3, RssiSampler.EMA, 0.5f);
+        sampler.add(-60, 0);
+
+        // -60 + 0.5 * (-70 + 60) = -65
+        assertTrue(sampler.add(-70, 1000));
+        assertEquals(-65, sampler.getSmoothedRssi());
+    }
+
+    @Test
+    public void add_notifiedOnlyWhenMovingByTheThreshold() {
+        RssiSampler sampler = new RssiSampler("A", 1000, 3, RssiSampler.EMA, 0.5f);
+        sampler.add(-60, 0);
+        sampler.add(-70, 1000);
+
+        // -65.5: 0.5 dB from the last value notified
+        assertFalse(sampler.add(-66, 2000));
+        // -68.75: 3.75 dB from the last value notified, not from the last sample
+        assertTrue(sampler.add(-72, 3000));
+        assertEquals(-69, sampler.getSmoothedRssi());
+    }
+
+    @Test
+    public void add_zeroThresholdNotifiesEveryChange() {
+        RssiSampler sampler = new RssiSampler("A", 1000, -5, RssiSampler.EMA, 0.25f);
+        sampler.add(-60, 0);
+        assertTrue(sampler.add(-61, 1000));
+        assertTrue(sampler.add(-59, 2000));
+    }
+
+    @Test
+    public void add_kalmanConvergesToAConstantSignal() {
+        RssiSampler sampler = new RssiSampler("A", 1000, 0, RssiSampler.KALMAN, 4f);
+        sampler.add(-60, 0);
+
+        int previous = sampler.getSmoothedRssi();
+        for (int i = 1; i <= 200; i++) {
+            sampler.add(-70, i * 1000);
+            int smoothed = sampler.getSmoothedRssi();
+            assertTrue(smoothed <= previous);
+            assertTrue(smoothed >= -70);
+            previous = smoothed;
+        }
+        assertEquals(-70, sampler.getSmoothedRssi());
+    }
+
+    @Test
+    public void add_kalmanSmoothsMoreWithALargerVariance() {
+        RssiSampler smooth = new RssiSampler("A", 1000, 0, RssiSampler.KALMAN, 16f);
+        RssiSampler fast = new RssiSampler("A", 1000, 0, RssiSampler.KALMAN, 1f);
+        smooth.add(-60, 0);
+        fast.add(-60, 0);
+        smooth.add(-80, 1000);
+        fast.add(-80, 1000);
+
+        // A single outlier moves the smoother filter less
+        assertTrue(smooth.getSmoothedRssi() > fast.getSmoothedRssi());
+        assertTrue(smooth.getSmoothedRssi() < -60);
+    }
+
+    @Test
+    public void isSampleDue_waitsForTheInterval() {
+        RssiSampler sampler = new RssiSampler("A", 1000, 3, RssiSampler.EMA, 0.5f);
+        sampler.add(-60, 5000);
+        assertFalse(sampler.isSampleDue(5999));
+        assertTrue(sampler.isSampleDue(6000));
+
+        // The interval is at least 50 ms
+        RssiSampler fast = new RssiSampler("A", 0, 3, RssiSampler.EMA, 0.5f);
+        fast.add(-60, 0);
+        assertFalse(fast.isSampleDue(49));
+        assertTrue(fast.isSampleDue(50));
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.bleframework;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the timing of the scheduled scans and of the limit of the scan starts.
+ */
+public class ScanSchedulerTest {
+
+    @Test
+    public void getStartDelay_allowsFiveStartsEvery30Seconds() {
+        ScanScheduler scheduler = new ScanScheduler();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, scheduler.getStartDelay(i * 1000));
+            scheduler.recordStart(i * 1000);
+        }
+
+        // The sixth start waits until the first one is older than 30 seconds (plus the margin)
+        assertEquals(25100, scheduler.getStartDelay(5000));
+        assertEquals(0, scheduler.getStartDelay(30100));
+
+        // Then the window slides to the second start
+        scheduler.recordStart(30100);
+        assertEquals(1000, scheduler.getStartDelay(30100));
+    }
+
+    @Test
+    public void endWindow_backsOffWhenNothingNewIsFound() {
+        ScanScheduler scheduler = new ScanScheduler();
+        scheduler.start(1000, 2000, 8000, 0, 0);
+
+        assertEquals(3000, scheduler.endWindow());
+        assertEquals(7000, scheduler.endWindow());
+        assertEquals(7000, scheduler.endWindow());
+
+        // A new device brings the interval back to the configured one
+        scheduler.addMatch();
+        assertEquals(1000, scheduler.endWindow());
+    }
+
+    @Test
+    public void start_clampsTheOptions() {
+        ScanScheduler scheduler = new ScanScheduler();
+        scheduler.start(10, 50, 0, 0, 0);
+
+        assertEquals(100, scheduler.windowMs);
+        // Interval at least as long as the window, no back-off beyond it
+        assertEquals(0, scheduler.endWindow());
+    }
+
+    @Test
+    public void addMatch_reportsWhenEnoughDevicesAreFound() {
+        ScanScheduler scheduler = new ScanScheduler();
+        scheduler.start(1000, 2000, 2000, 2, 0);
+        assertTrue(scheduler.isActive());
+
+        assertFalse(scheduler.addMatch());
+        assertTrue(scheduler.addMatch());
+        assertEquals(2, scheduler.getMatches());
+
+        scheduler.stop();
+        assertFalse(scheduler.isActive());
+    }
+
+    @Test
+    public void addMatch_noLimitWithoutMaxMatches() {
+        ScanScheduler scheduler = new ScanScheduler();
+        scheduler.start(1000, 2000, 2000, 0, 0);
+        for (int i = 0; i < 100; i++)
+            assertFalse(scheduler.addMatch());
+    }
+
+    @Test
+    public void start_resetsTheMatches() {
+        ScanScheduler scheduler = new ScanScheduler();
+        scheduler.start(1000, 2000, 2000, 0, 0);
+        scheduler.addMatch();
+        scheduler.start(1000, 2000, 2000, 0, 0);
+        assertEquals(0, scheduler.getMatches());
+    }
+}
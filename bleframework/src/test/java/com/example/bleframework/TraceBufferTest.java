@@ -0,0 +1,89 @@
+package com.example.bleframework;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the records of the trace ring and of their text dump.
+ */
+public class TraceBufferTest {
+
+    // Trace whose timestamps are the number of records written so far
+    private static class CountingTraceBuffer extends TraceBuffer {
+        long time = 0;
+
+        CountingTraceBuffer(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        long now() {
+            return time++;
+        }
+    }
+
+    private static List<String> dump(TraceBuffer trace) throws IOException {
+        File file = File.createTempFile("trace", ".txt");
+        file.deleteOnExit();
+        assertTrue(trace.dump(file.getPath()));
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void dump_writesOneLinePerRecord() throws IOException {
+        TraceBuffer trace = new CountingTraceBuffer(16);
+        trace.record(TraceBuffer.WRITE, "aa:bb:cc:dd:ee:ff", 42, 0);
+        trace.record(TraceBuffer.READ, "01:23:45:67:89:AB", 7, 257);
+
+        List<String> lines = dump(trace);
+        assertEquals(3, lines.size());
+        assertEquals("timestamp_ns event device handle status", lines.get(0));
+        assertEquals("0 write AA:BB:CC:DD:EE:FF 42 0", lines.get(1));
+        assertEquals("1 read 01:23:45:67:89:AB 7 257", lines.get(2));
+    }
+
+    @Test
+    public void record_keepsNegativeValues() throws IOException {
+        TraceBuffer trace = new CountingTraceBuffer(16);
+        trace.record(TraceBuffer.RSSI, "00:00:00:00:00:01", -70, -1);
+
+        assertEquals("0 rssi 00:00:00:00:00:01 -70 -1", dump(trace).get(1));
+    }
+
+    @Test
+    public void record_withoutAddress() throws IOException {
+        TraceBuffer trace = new CountingTraceBuffer(16);
+        trace.record(TraceBuffer.SCAN_RESULT, null, 0, 0);
+
+        assertEquals("0 scan_result 00:00:00:00:00:00 0 0", dump(trace).get(1));
+    }
+
+    @Test
+    public void record_overwritesTheOldestRecordsWhenFull() throws IOException {
+        TraceBuffer trace = new CountingTraceBuffer(16);
+        for (int i = 0; i < 20; i++)
+            trace.record(TraceBuffer.NOTIFICATION, "00:00:00:00:00:01", i, 0);
+
+        List<String> lines = dump(trace);
+        assertEquals(17, lines.size());
+        // The first 4 records have been overwritten, the others are dumped from the oldest
+        assertEquals("4 notification 00:00:00:00:00:01 4 0", lines.get(1));
+        assertEquals("19 notification 00:00:00:00:00:01 19 0", lines.get(16));
+    }
+
+    @Test
+    public void capacity_isAtLeast16() throws IOException {
+        TraceBuffer trace = new CountingTraceBuffer(1);
+        for (int i = 0; i < 16; i++)
+            trace.record(TraceBuffer.WRITE, "00:00:00:00:00:01", i, 0);
+
+        assertEquals(17, dump(trace).size());
+    }
+}